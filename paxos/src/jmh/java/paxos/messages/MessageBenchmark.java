@@ -0,0 +1,94 @@
+package paxos.messages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paxos.paxos.Proposal;
+
+/**
+ * Encoding and decoding of the messages sent for every round, in both wire formats.
+ * The message is a PREPARE_RESPONSE carrying `proposals` accepted proposals of valueSize characters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	
+	@Param({"16", "1024", "65536"})
+	int valueSize;
+	
+	@Param({"1", "8"})
+	int proposals;
+	
+	private Message msg;
+	private Proposal prop;
+	private String json;
+	private String propJson;
+	private byte[] binary;
+	
+	@Setup
+	public void setup(){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<valueSize; i++)
+			sb.append((char)('a' + i%26));
+		String value = sb.toString();
+		
+		List<Proposal> props = new ArrayList<>();
+		for(int i=0; i<proposals; i++)
+			props.add(new Proposal(42, value, 1000+i));
+		prop = props.get(0);
+		msg = new Message(MessageType.PREPARE_RESPONSE, null, 42, 3, props);
+		
+		json = msg.toString();
+		propJson = prop.toString();
+		binary = MessageCodec.encode(msg);
+	}
+	
+	@Benchmark
+	public String jsonEncode(){
+		return msg.toString();
+	}
+	
+	@Benchmark
+	public Message jsonDecode(){
+		return Message.fromString(json);
+	}
+	
+	@Benchmark
+	public byte[] binaryEncode(){
+		return MessageCodec.encode(msg);
+	}
+	
+	@Benchmark
+	public Message binaryDecode(){
+		return MessageCodec.decode(ByteBuffer.wrap(binary));
+	}
+	
+	@Benchmark
+	public String proposalEncode(){
+		return prop.toString();
+	}
+	
+	@Benchmark
+	public Proposal proposalDecode(){
+		return Proposal.fromString(propJson);
+	}
+	
+}
@@ -0,0 +1,68 @@
+package paxos.paxos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of writing a snapshot: PaxosState.writeToFile serializes the whole state and fsyncs it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaxosStateBenchmark {
+	
+	@Param({"16", "1024"})
+	int valueSize;
+	
+	@Param({"10", "1000"})
+	int chosenRounds;
+	
+	private PaxosState state;
+	private File file;
+	
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<valueSize; i++)
+			sb.append((char)('a' + i%26));
+		String value = sb.toString();
+		
+		state = new PaxosState(0);
+		state.lastProposalNumber = 42;
+		state.promiseNumber = 42;
+		for(int round=0; round<chosenRounds; round++)
+			state.chosenValues.put(round, value);
+		state.currentRound = chosenRounds;
+		state.acceptedProposals.put(chosenRounds, new Proposal(42, value, chosenRounds));
+		
+		file = File.createTempFile("paxos-bench", ".state");
+	}
+	
+	@TearDown
+	public void tearDown(){
+		file.delete();
+	}
+	
+	@Benchmark
+	public boolean writeToFile(){
+		return state.writeToFile(file.getPath());
+	}
+	
+}
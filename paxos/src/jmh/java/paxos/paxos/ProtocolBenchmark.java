@@ -0,0 +1,166 @@
+package paxos.paxos;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paxos.application.AbstractApp;
+import paxos.messages.Message;
+
+/**
+ * N PaxosNodes in one JVM, wired to each other without sockets. Measures a full
+ * accept -> notification -> chosen cycle for one value, including the log syncs,
+ * the learner's tally of the notifications that decide one round, and a linearizable read
+ * on the leader and on a follower.
+ * Node 0 is the distinguished proposer and learner; Phase 1 is done once in setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog4j.configurationFile=log4j2-jmh.xml", "-Dpaxos.batch.size=1"})
+public class ProtocolBenchmark {
+	
+	@Param({"3", "5", "9"})
+	int nodes;
+	
+	@Param({"16", "1024"})
+	int valueSize;
+	
+	private LocalApp[] apps;
+	private PaxosNode leader;
+	private PaxosNode follower;
+	private String value;
+	private QuorumTracker quorum;
+	private Proposal notification;
+	
+	// delivers messages straight to the other PaxosNodes instead of through a NetworkNode
+	static class LocalApp extends AbstractApp {
+		private LocalApp[] cluster;
+		
+		LocalApp(int id, String nodeListFileName, LocalApp[] cluster) {
+			super(id, nodeListFileName, null);
+			this.cluster = cluster;
+		}
+		
+		@Override
+		public void sendMessage(int nodeId, Message msg){
+			cluster[nodeId].getPaxnode().processMessage(msg);
+		}
+		
+		// the PaxosNode sends everything through these, which would go to the NetworkNode
+		@Override
+		public void broadcast(Collection<Integer> nodeIds, Message msg){
+			for(int nodeId : nodeIds)
+				sendMessage(nodeId, msg);
+		}
+		
+		@Override
+		public void sendBatch(Runnable sends){
+			sends.run();
+		}
+		
+		@Override
+		public boolean isConnected(int nodeId){
+			return true;
+		}
+		
+		@Override
+		public void run_app() {}
+		
+		@Override
+		public void processMessage(Message msg) {}
+	}
+	
+	@Setup
+	public void setup() throws IOException {
+		new File("states").mkdirs();
+		File nodeFile = File.createTempFile("paxos-bench", ".txt");
+		nodeFile.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(nodeFile)){
+			for(int i=0; i<nodes; i++){
+				String first = (i==0) ? "1" : "0";
+				out.println("127.0.0.1 " + (7000+i) + " " + (1.0f/nodes) + " 0 0 " + first + " " + first);
+			}
+		}
+		
+		apps = new LocalApp[nodes];
+		for(int i=0; i<nodes; i++)
+			apps[i] = new LocalApp(i, nodeFile.getPath(), apps);
+		for(LocalApp app : apps)
+			app.getPaxnode().run();
+		leader = apps[0].getPaxnode();
+		follower = apps[1].getPaxnode();
+		
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<valueSize; i++)
+			sb.append((char)('a' + i%26));
+		value = sb.toString();
+		
+		// the first value runs Phase 1, after that every proposal goes straight to Phase 2
+		leader.propose(value).join();
+		
+		// and the follower reads through the leader once it has heard a heartbeat
+		while(follower.getLeaderId() != 0)
+			Thread.yield();
+		
+		double[] weights = new double[nodes];
+		for(int i=0; i<nodes; i++)
+			weights[i] = 1.0/nodes;
+		quorum = new QuorumTracker(weights, PaxosConfig.PHASE1_QUORUM, PaxosConfig.PHASE2_QUORUM, 4*PaxosConfig.WINDOW);
+		notification = new Proposal(0, value, 0);
+	}
+	
+	@TearDown
+	public void tearDown(){
+		for(int i=0; i<nodes; i++){
+			new File(PaxosState.filename(i)).delete();
+			new File(WriteAheadLog.filenameFor(PaxosState.filename(i))).delete();
+		}
+	}
+	
+	@Benchmark
+	public Integer proposeAndDecide(){
+		return leader.propose(value).join();
+	}
+	
+	// answered from the leader lease, without any message
+	@Benchmark
+	public Integer leaseRead(){
+		return leader.read(() -> 0).join();
+	}
+	
+	// one round trip to the leader for the read index
+	@Benchmark
+	public Integer followerRead(){
+		return follower.read(() -> 0).join();
+	}
+	
+	// a majority of acceptors reporting the same proposal for the next round, which is then decided
+	@Benchmark
+	public String tallyRound(){
+		notification.round++;
+		String chosen = null;
+		for(int i=0; chosen == null; i++)
+			chosen = quorum.record(i, notification);
+		quorum.remove(notification.round);
+		return chosen;
+	}
+	
+}
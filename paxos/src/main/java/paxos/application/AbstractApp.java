@@ -1,54 +1,92 @@
 package paxos.application;
 
-import org.apache.logging.log4j.Logger;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
 
 import paxos.messages.Message;
+import paxos.metrics.MetricsRegistry;
 import paxos.network.NetworkNode;
+import paxos.network.PeerMonitor;
+import paxos.network.Transport;
+import paxos.paxos.DecisionListener;
+import paxos.paxos.PaxosConfig;
 import paxos.paxos.PaxosNode;
 
 abstract public class AbstractApp {
-
-	static Logger log;
 	
-	private NetworkNode netnode;
+	private Logger log;
+	
+	private Transport netnode;
+	private PeerMonitor monitor;
 	private PaxosNode paxnode;
+	private CommandBatcher batcher;
+	private MetricsRegistry metrics = new MetricsRegistry();
 	private int id;
 	
 	
 	public AbstractApp(int id, String nodeListFileName, String statefile) {
 		this.id = id;
+		configureLog();
+		init(new NetworkNode(id, nodeListFileName, (statefile!=null), log), statefile);
+	}
+	
+	
+	// run over another transport, e.g. an endpoint of a SimulatedNetwork
+	public AbstractApp(int id, Transport transport, String statefile) {
+		this.id = id;
+		configureLog();
+		init(transport, statefile);
+	}
+	
+	
+	// every node gets a logger context of its own, so nodes sharing a JVM each write their own
+	// file. The context reads the configuration while logFilename names this node's file
+	private void configureLog(){
+		LoggerContext ctx;
+		synchronized(AbstractApp.class){
+			System.setProperty("logFilename", "logs/node_" + id + ".log");
+			ctx = new LoggerContext("node" + id);
+			ctx.start();
+		}
 		
-		// configure log filename
-		System.setProperty("logFilename", "logs/node_" + id + ".log");
-		LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
-		ctx.reconfigure();
-		
-		log = LogManager.getLogger(this.getClass().getCanonicalName());
+		log = ctx.getLogger(this.getClass().getCanonicalName());
 		
 		log.info("Created new " + this.getClass().getSimpleName() + " with:");
 		log.info("\tid = " + id);
-		
-		netnode = new NetworkNode(id, nodeListFileName, (statefile!=null), log);
+	}
+	
+	
+	private void init(Transport transport, String statefile){
+		netnode = transport;
+		netnode.setMessageHandler(this::handleMessage);
+		netnode.setMetrics(metrics);
+		monitor = new PeerMonitor(netnode, PaxosConfig.PING_INTERVAL_MS);
 		if(statefile==null)
 			paxnode = new PaxosNode(this, log);
 		else
 			paxnode = new PaxosNode(this, log, statefile);
-
+		
+		batcher = new CommandBatcher(paxnode, PaxosConfig.BATCH_SIZE, PaxosConfig.BATCH_DELAY_MS);
+		
 	}
 	
 	public void run(){
+		metrics.start(id, PaxosConfig.METRICS_JMX, new File(PaxosConfig.METRICS_DIR, "node_" + id + ".json"), PaxosConfig.METRICS_DUMP_MS, log);
+		
 		log.info("Running netnode");
 		netnode.run();
+		monitor.start();
 		
 		log.info("Running paxnode");
 		paxnode.run();
 		
-		log.info("Starting Listener loops");
-		startListenerLoops();
-		
 		log.info("Running run_app");
 		run_app();
 	}
@@ -67,11 +105,68 @@ abstract public class AbstractApp {
 		return id;
 	}
 	
+	// commands are batched before being proposed, see CommandBatcher
 	public void initiate_paxos(String value){
-		paxnode.reset(value);
-		paxnode.sendPrepareRequest();
+		propose(value);
 	}
 	
+	/**
+	 * Propose a command. The future completes with the command once it has been chosen
+	 * and delivered to this app through deliverCommand().
+	 */
+	public CompletableFuture<String> propose(String command){
+		return batcher.submit(command);
+	}
+	
+	/**
+	 * Run a query against this app's state once it reflects every command chosen before the call,
+	 * without proposing anything. The query runs between calls to deliverCommand(), so it may read
+	 * the state they build without locking. See PaxosNode.read().
+	 */
+	public <T> CompletableFuture<T> read(Supplier<T> query){
+		return paxnode.read(query);
+	}
+	
+	// notified of every chosen (batched) value after the app has applied it
+	public void addDecisionListener(DecisionListener listener){
+		paxnode.addDecisionListener(listener);
+	}
+	
+	/**
+	 * Called by PaxosNode once for every chosen value, in round order.
+	 * Unpacks the command batch and hands each command to deliverCommand().
+	 */
+	public void deliver(int round, String value){
+		List<String> commands;
+		try{
+			commands = CommandBatcher.fromString(value);
+		} catch(IllegalArgumentException e){
+			// value proposed without batching, e.g. from an older state file
+			commands = Collections.singletonList(value);
+		}
+		
+		for(String command : commands)
+			deliverCommand(round, command);
+	}
+	
+	/**
+	 * Called once for every chosen command, in log order. Override to apply decisions.
+	 */
+	public void deliverCommand(int round, String command){}
+	
+	/**
+	 * Serialize the state built from every command delivered so far, or return null if
+	 * the app keeps none. Called by PaxosNode before it discards old chosen values.
+	 */
+	public String takeSnapshot(){
+		return null;
+	}
+	
+	/**
+	 * Restore state saved by takeSnapshot() after a restart, before any later command is delivered.
+	 */
+	public void installSnapshot(String snapshot){}
+	
 	public PaxosNode getPaxnode() {
 		return paxnode;
 	}
@@ -92,72 +187,53 @@ abstract public class AbstractApp {
 		netnode.sendMessage(nodeId, msg);
 	}
 	
+	public void broadcast(Collection<Integer> nodeIds, Message msg){
+		netnode.broadcast(nodeIds, msg);
+	}
 	
+	public void sendBatch(Runnable sends){
+		netnode.sendBatch(sends);
+	}
 	
-//*************************************************8
-//		Listen loop methods	
-		
-
-	private void startListenerLoops(){
-		// start a listener loop for all connected nodes
-		for(int inode=0; inode<netnode.getTotalNodeCount(); inode++){
-			// spin off new thread
-			final int ii = inode;
-			Thread t = new Thread(new Runnable() {
-
-				@Override
-				public void run() {
-					listenerLoop(ii);
-				}
-			});
-			log.debug("Starting App listener thread "+ inode);
-			t.start();
-		}
+	public boolean isConnected(int nodeId){
+		return netnode.isConnected(nodeId);
 	}
 	
+	public void schedule(Runnable task, long delayMs){
+		netnode.schedule(task, delayMs);
+	}
+	
+	public long nanoTime(){
+		return netnode.nanoTime();
+	}
+	
+	// latencies, traffic and throughput of this node, see MetricsRegistry
+	public MetricsRegistry getMetrics(){
+		return metrics;
+	}
+	
+	// round trip times measured by pinging the other nodes
+	public PeerMonitor getPeerMonitor(){
+		return monitor;
+	}
+	
+	
+	
+//*************************************************8
+//		Message handling	
+	
 	
 	/**
-	 * Infinite listen loop for messages on the App network
+	 * Called by the NetworkNode for every incoming message
 	 */
-	private void listenerLoop(int otherID){
-		Message msg = null;
-		log.debug("Entering listener loop for node " + otherID);
-		int connectionAttempts = 0;
-		while(true){
-			if(!netnode.isConnected(otherID)){
-				connectionAttempts++;
-				if(connectionAttempts<25 || connectionAttempts%50==0){
-					log.trace("Node " + otherID + " not connected after " + connectionAttempts + " attempts!");
-				}
-				try {
-					int wait_time = Math.min(500*connectionAttempts, 60000);
-					Thread.sleep(wait_time);
-				} catch (InterruptedException e) {}
-				continue;
-			}
-			
-			try{
-				log.debug("Listener loop connected for node " + otherID);
-				while( (msg = netnode.receiveMessage(otherID)) != null){
-					log.debug("Received string " + msg + " from node " + otherID);
-					
-					// process message based on type
-					paxnode.processMessage(msg);
-					processMessage(msg);
-				}
-			} catch (Exception e){
-				log.warn(e.getClass().getSimpleName() + ": " + e.getMessage());
-				e.printStackTrace();
-			}
-			finally{
-				log.warn("Uh oh! Lost connection with server " + otherID + ": clearing comms");
-				connectionAttempts = 0;
-				netnode.clearnode(otherID);
-			}
-			
-			
-			
-		}
+	private void handleMessage(Message msg){
+		if(monitor.handle(msg))
+			return;
+		log.debug("Processing message \"{}\" from node {}", msg, msg.getId());
+		
+		// process message based on type
+		paxnode.processMessage(msg);
+		processMessage(msg);
 	}
 	
 	
@@ -0,0 +1,104 @@
+package paxos.application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import paxos.paxos.PaxosNode;
+
+/**
+ * Collects submitted commands and proposes them to the PaxosNode as a single value,
+ * either when maxSize commands are waiting or maxDelayMs after the first one arrived.
+ * Each command's future completes when the batch holding it has been delivered.
+ */
+public class CommandBatcher {
+	private static final Gson gson = new Gson();
+	
+	private PaxosNode paxnode;
+	private int maxSize;
+	private long maxDelayMs;
+	private List<String> batch;
+	private List<CompletableFuture<String>> futures;
+	private ScheduledExecutorService timer;
+	
+	public CommandBatcher(PaxosNode paxnode, int maxSize, long maxDelayMs) {
+		this.paxnode = paxnode;
+		this.maxSize = maxSize;
+		this.maxDelayMs = maxDelayMs;
+		this.batch = new ArrayList<>();
+		this.futures = new ArrayList<>();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "CommandBatcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	public CompletableFuture<String> submit(String command){
+		CompletableFuture<String> future = new CompletableFuture<>();
+		Runnable full = null;
+		synchronized(this){
+			batch.add(command);
+			futures.add(future);
+			if(batch.size() >= maxSize){
+				full = takeBatch();
+			} else if(batch.size() == 1){
+				timer.schedule(this::flush, maxDelayMs, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		if(full != null)
+			full.run();
+		return future;
+	}
+	
+	// propose whatever is waiting, if anything
+	public void flush(){
+		Runnable toPropose;
+		synchronized(this){
+			toPropose = batch.isEmpty() ? null : takeBatch();
+		}
+		if(toPropose != null)
+			toPropose.run();
+	}
+	
+	// empty the batch, returning the action that proposes it and completes its futures
+	private Runnable takeBatch(){
+		List<String> commands = batch;
+		List<CompletableFuture<String>> waiting = futures;
+		batch = new ArrayList<>();
+		futures = new ArrayList<>();
+		return () -> paxnode.propose(toString(commands)).thenRun(() -> {
+			for(int i=0; i<commands.size(); i++)
+				waiting.get(i).complete(commands.get(i));
+		});
+	}
+	
+	
+	public static String toString(List<String> commands) throws IllegalArgumentException{
+		try{
+			return gson.toJson(commands.toArray(new String[commands.size()]));
+		} catch(JsonSyntaxException e){
+			throw new IllegalArgumentException("Could not encode command batch from string");
+		}
+	}
+	
+	public static List<String> fromString(String string) throws IllegalArgumentException{
+		try{
+			String[] commands = gson.fromJson(string, String[].class);
+			if(commands == null)
+				throw new IllegalArgumentException("Could not decode command batch from string");
+			return Arrays.asList(commands);
+		} catch(JsonSyntaxException | IllegalStateException e){
+			throw new IllegalArgumentException("Could not decode command batch from string");
+		}
+	}
+	
+}
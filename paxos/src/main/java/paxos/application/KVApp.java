@@ -0,0 +1,197 @@
+package paxos.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import paxos.NodeFileParser;
+import paxos.kv.KVCommand;
+import paxos.kv.KVServer;
+import paxos.kv.KVStore;
+import paxos.messages.Message;
+import paxos.network.Transport;
+import paxos.paxos.PaxosConfig;
+
+/**
+ * A replicated key-value store. Writes are proposed as KVCommands and applied to a KVStore in
+ * round order on every node; GETs are lease reads, see PaxosNode.read(). The store is saved
+ * and restored through the PaxosNode's snapshots.
+ * Clients on the same machine use the line protocol of KVCommand on the node's port plus
+ * paxos.kv.portOffset, e.g. with paxos.kv.KVClient.
+ */
+public class KVApp extends AbstractApp {
+	
+	private KVStore store = new KVStore();
+	private String runId = getId() + "-" + System.currentTimeMillis();	// new commands never repeat a sequence number of an older run
+	private int generation = 0;
+	private String origin = runId + "." + generation;	// guarded by this, with nextSeq
+	private long nextSeq = 0;
+	private Map<String, String> replies = new ConcurrentHashMap<>();	// by source, for our own commands, until their futures take them
+	
+	public KVApp(int id, String nodeListFileName, String statefile) {
+		super(id, nodeListFileName, statefile);
+	}
+	
+	// run over another transport, e.g. an endpoint of a SimulatedNetwork
+	public KVApp(int id, Transport transport, String statefile) {
+		super(id, transport, statefile);
+	}
+	
+	@Override
+	public void run_app() {
+		int port = Integer.parseInt(getNodeFileTokens(getId())[NodeFileParser.PORT_COL]) + PaxosConfig.KV_PORT_OFFSET;
+		try {
+			new KVServer(port, this::execute, getLog()).start();
+		} catch (IOException e) {
+			getLog().error("Could not serve KV clients on port " + port + ": " + e.getMessage());
+		}
+	}
+	
+	
+	// value of key once every write chosen before the call is applied, or null if absent
+	public CompletableFuture<String> get(String key){
+		return read(() -> store.get(key));
+	}
+	
+	public CompletableFuture<String> put(String key, String value){
+		return submit(new KVCommand(KVCommand.Op.PUT, key, value, null));
+	}
+	
+	public CompletableFuture<String> delete(String key){
+		return submit(new KVCommand(KVCommand.Op.DEL, key, null, null));
+	}
+	
+	// set key to value if it holds expected, or if it is absent when expected is null
+	public CompletableFuture<String> compareAndSet(String key, String expected, String value){
+		return submit(new KVCommand(KVCommand.Op.CAS, key, value, expected));
+	}
+	
+	/**
+	 * Run one line of the client protocol.
+	 * @return a future of the reply line
+	 */
+	public CompletableFuture<String> execute(String line){
+		KVCommand cmd;
+		try{
+			cmd = KVCommand.parse(line);
+		} catch(IllegalArgumentException e){
+			return CompletableFuture.completedFuture(KVCommand.ERROR + " " + e.getMessage());
+		}
+		
+		if(cmd.getOp() == KVCommand.Op.GET){
+			return get(cmd.getKey()).thenApply(value -> (value == null) ? KVCommand.NOT_FOUND : KVCommand.VALUE + " " + value);
+		}
+		return submit(cmd);
+	}
+	
+	// propose a write; the future completes with its reply once it is applied here. A write
+	// applied through a snapshot from another node has no reply recorded, only a PUT's is certain
+	private CompletableFuture<String> submit(KVCommand cmd){
+		synchronized(this){
+			cmd.setSource(origin, nextSeq++);
+		}
+		return propose(cmd.toString()).thenApply(command -> {
+			String reply = replies.remove(source(cmd));
+			if(reply != null)
+				return reply;
+			if(cmd.getOp() == KVCommand.Op.PUT)
+				return KVCommand.OK;
+			return KVCommand.ERROR + " " + cmd.getOp() + " applied through a snapshot, its result is unknown";
+		});
+	}
+	
+	
+	@Override
+	public void deliverCommand(int round, String command) {
+		KVCommand cmd;
+		try{
+			cmd = KVCommand.fromString(command);
+		} catch(IllegalArgumentException e){
+			getLog().warn("Skipping a command in round " + round + " that is not a KV command: " + command);
+			return;
+		}
+		
+		String reply = store.apply(cmd);
+		if(reply == null || !cmd.getOrigin().startsWith(runId + "."))
+			return;
+		replies.put(source(cmd), reply);
+		
+		// a command of ours the store will never apply leaves a gap it cannot pass, so
+		// later commands go out under a new origin, starting again from sequence number 0
+		if(KVStore.isTooFarAhead(reply)){
+			synchronized(this){
+				if(origin.equals(cmd.getOrigin())){
+					origin = runId + "." + (++generation);
+					nextSeq = 0;
+					getLog().warn("Command " + cmd.getSeq() + " refused as too far ahead, sending new commands as " + origin);
+				}
+			}
+		}
+	}
+	
+	private static String source(KVCommand cmd){
+		return cmd.getOrigin() + " " + cmd.getSeq();
+	}
+	
+	@Override
+	public String takeSnapshot(){
+		return store.toString();
+	}
+	
+	@Override
+	public void installSnapshot(String snapshot){
+		try{
+			store = KVStore.fromString(snapshot);
+			getLog().info("Restored " + store.size() + " keys from snapshot");
+		} catch(IllegalArgumentException e){
+			getLog().error("Could not restore the KV store from its snapshot: " + e.getMessage());
+		}
+	}
+	
+	@Override
+	public void processMessage(Message msg) {}
+	
+	
+//****************************************************************
+//	main()
+//****************************************************************
+	
+	/**
+	 * Run one node of the store
+	 *
+	 * @param args
+	 *            command line input. Expects [id] [nodeList file] [optional statefile]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("ERROR: Provide 2 or 3 arguments");
+			System.out.println("\t(1) <int>: process id, between 0 and number of nodes in node list file");
+			System.out.println("\t(2) <file>: node list file");
+			System.out.println("\t(3) <statefile>: optional path to statefile to restart failed server");
+			System.exit(-1);
+		}
+		
+		int id=0;
+		try{
+			id = Integer.parseInt(args[0]);
+		} catch (NumberFormatException e){
+			System.err.println("Error parsing process id from input string " + args[0]);
+			System.exit(1);
+		}
+		
+		String fileName = args[1];
+		String statefile = (args.length==3) ? args[2] : null;
+		
+		File file = new File(fileName);
+		if (!file.exists() || file.isDirectory()){
+			System.err.println("IO error for nodeList file: " + fileName);
+			System.exit(2);
+		}
+		
+		AbstractApp app = new KVApp(id, fileName, statefile);
+		app.run();
+	}
+	
+}
@@ -25,33 +25,28 @@ public class PretendApp extends AbstractApp{
 			e.printStackTrace();
 		}
 		
-		// start a Paxos round every 2 seconds, N times
+		// submit N values up front; PaxosNode keeps up to paxos.window rounds in flight
+		// and each future reports its value once it is chosen
 		
 		int N = 10;
-		for(int cnt=0; cnt<N; cnt++){
-			try {
-				if(getPaxnode().isDistinguishedProposer()){
-					int round = getPaxnode().getCurrentRound();
-					long t1 = System.currentTimeMillis();
-					getLog().info("Initiating Paxos round " + round);
-					initiate_paxos("MyVal" + getId() + "-" + round);
-					
-					String chosenValue = null;
-					while( (chosenValue = getPaxnode().getChosenValueForRound(round)) == null){
-						Thread.sleep(1);
-					}
+		if(getPaxnode().isDistinguishedProposer()){
+			for(int cnt=0; cnt<N; cnt++){
+				String value = "MyVal" + getId() + "-" + cnt;
+				getLog().info("Submitting value " + value);
+				long t1 = System.currentTimeMillis();
+				propose(value).thenAccept(chosen -> {
 					long t2 = System.currentTimeMillis();
-					getLog().info("Chosen value for round " + round + " : " + chosenValue);
-					getLog().info("Elapsed time for round " + round + " : " + (t2-t1) + " ms");
-					Thread.sleep(100);
-				}
-			
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+					getLog().info("Elapsed time for " + chosen + " : " + (t2-t1) + " ms");
+				});
 			}
 		}
 		
 	}
+	
+	@Override
+	public void deliverCommand(int round, String value) {
+		getLog().info("Chosen value for round " + round + " : " + value);
+	}
 
 	
 //****************************************************************
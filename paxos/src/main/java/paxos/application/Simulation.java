@@ -0,0 +1,156 @@
+package paxos.application;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import paxos.messages.Message;
+import paxos.network.LatencyModel;
+import paxos.network.SimulatedNetwork;
+
+/**
+ * Runs every node of a node list file in this JVM on a SimulatedNetwork. Each distinguished
+ * proposer proposes the given number of values, and the run reports throughput and the
+ * latency of each value in virtual milliseconds.
+ * Given a crash time, the leader at that time is cut off from every other node instead. The
+ * values are then proposed at the node after the first distinguished proposer, which forwards
+ * them to whoever leads, and the run also reports the longest wait between two decisions.
+ * There are no startup sleeps or sockets, so the demo scenarios run in well under a second.
+ */
+public class Simulation {
+	
+	private static final long MAX_VIRTUAL_TIME = 10*60*1000;
+	
+	static class SimulatedApp extends AbstractApp {
+		SimulatedApp(int id, SimulatedNetwork network) {
+			super(id, network.endpoint(id), null);
+		}
+		
+		@Override
+		public void run_app() {}
+		
+		@Override
+		public void processMessage(Message msg) {}
+	}
+	
+	
+	/**
+	 * @param args [nodeList file] [values per proposer] [optional seed] [optional mean latency ms]
+	 *             [optional drop rate] [optional reorder rate] [optional crash time ms]
+	 */
+	public static void main(String[] args) {
+		// a simulation's write-ahead logs are thrown away, don't force them to disk unless asked to.
+		// Set before anything reads PaxosConfig
+		if(System.getProperty("paxos.wal.fsync") == null)
+			System.setProperty("paxos.wal.fsync", "false");
+		
+		if (args.length < 2 || args.length > 7) {
+			System.out.println("ERROR: Provide 2 to 7 arguments");
+			System.out.println("\t(1) <file>: node list file");
+			System.out.println("\t(2) <int>: number of values each distinguished proposer proposes");
+			System.out.println("\t(3) <long>: optional random seed, default 1");
+			System.out.println("\t(4) <int>: optional mean one-way latency in virtual ms, default 1");
+			System.out.println("\t(5) <float>: optional message drop rate, default 0");
+			System.out.println("\t(6) <float>: optional message reorder rate, default 0");
+			System.out.println("\t(7) <int>: optional virtual ms at which the leader is cut off, default never");
+			System.exit(-1);
+		}
+		
+		String fileName = args[0];
+		File file = new File(fileName);
+		if (!file.exists() || file.isDirectory()){
+			System.err.println("IO error for nodeList file: " + fileName);
+			System.exit(2);
+		}
+		
+		int values = Integer.parseInt(args[1]);
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+		long meanLatency = (args.length > 3) ? Long.parseLong(args[3]) : 1;
+		double dropRate = (args.length > 4) ? Double.parseDouble(args[4]) : 0;
+		double reorderRate = (args.length > 5) ? Double.parseDouble(args[5]) : 0;
+		long crashAt = (args.length > 6) ? Long.parseLong(args[6]) : -1;
+		
+		new File("states").mkdirs();
+		SimulatedNetwork network = new SimulatedNetwork(fileName, seed);
+		network.setLatency(LatencyModel.exponential(meanLatency/2, meanLatency));
+		network.setDropRate(dropRate);
+		network.setReorderRate(reorderRate);
+		
+		int n = network.endpoint(0).getTotalNodeCount();
+		List<SimulatedApp> apps = new ArrayList<>();
+		for(int i=0; i<n; i++){
+			SimulatedApp app = new SimulatedApp(i, network);
+			network.addIdleCheck(app.getPaxnode()::isIdle);
+			apps.add(app);
+		}
+		for(SimulatedApp app : apps)
+			app.run();
+		
+		List<SimulatedApp> proposers = new ArrayList<>();
+		for(SimulatedApp app : apps){
+			if(app.getPaxnode().isDistinguishedProposer())
+				proposers.add(app);
+		}
+		if(crashAt >= 0 && !proposers.isEmpty())
+			proposers = Collections.singletonList(apps.get((proposers.get(0).getId()+1) % n));
+		
+		// virtual time of every decision, to find the longest wait between two
+		List<Long> decisions = Collections.synchronizedList(new ArrayList<>());
+		if(!proposers.isEmpty())
+			proposers.get(0).addDecisionListener((round, value) -> decisions.add(network.now()));
+		
+		// propose straight to the PaxosNodes: the batcher's timer runs in real time
+		long t1 = System.currentTimeMillis();
+		List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger expected = new AtomicInteger();
+		for(SimulatedApp app : proposers){
+			for(int cnt=0; cnt<values; cnt++){
+				long start = network.now();
+				expected.incrementAndGet();
+				app.getPaxnode().propose("SimVal" + app.getId() + "-" + cnt)
+					.thenRun(() -> latencies.add(network.now() - start));
+			}
+		}
+		
+		BooleanSupplier allDecided = () -> latencies.size() == expected.get();
+		if(crashAt >= 0 && !network.runUntil(allDecided, crashAt)){
+			for(SimulatedApp app : apps){
+				if(app.getPaxnode().isLeader()){
+					System.out.println("Cutting off leader node " + app.getId() + " at " + network.now() + " ms");
+					network.partition(new int[]{app.getId()});
+				}
+			}
+		}
+		boolean done = network.runUntil(allDecided, MAX_VIRTUAL_TIME);
+		long t2 = System.currentTimeMillis();
+		
+		List<Long> sorted = new ArrayList<>(latencies);
+		Collections.sort(sorted);
+		System.out.println((done ? "Decided " : "Stalled after ") + sorted.size() + " of " + expected.get() + " values");
+		System.out.println("Virtual time = " + network.now() + " ms, real time = " + (t2-t1) + " ms");
+		if(!sorted.isEmpty()){
+			long sum = 0;
+			for(long l : sorted)
+				sum += l;
+			System.out.println("Latency (virtual ms): mean = " + (sum/sorted.size())
+					+ ", p50 = " + sorted.get(sorted.size()/2)
+					+ ", p99 = " + sorted.get(sorted.size()*99/100)
+					+ ", max = " + sorted.get(sorted.size()-1));
+			System.out.println("Throughput = " + (1000L*sorted.size()/Math.max(1, t2-t1)) + " values per real second");
+		}
+		if(crashAt >= 0){
+			long gap = 0;
+			synchronized(decisions){
+				for(int i=1; i<decisions.size(); i++)
+					gap = Math.max(gap, decisions.get(i) - decisions.get(i-1));
+			}
+			System.out.println("Longest wait between decisions = " + gap + " ms");
+		}
+		System.out.println("Messages delivered = " + network.getDelivered() + ", dropped = " + network.getDropped() + ", timer tasks run = " + network.getTasksRun());
+		System.exit(done ? 0 : 1);
+	}
+	
+}
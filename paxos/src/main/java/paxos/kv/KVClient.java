@@ -0,0 +1,139 @@
+package paxos.kv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client of one node's KVServer, sending one command at a time.
+ * Run as a program it is a load generator: several connections send a mix of GETs and PUTs
+ * over a key space for a while, then the run reports operations per second and latency.
+ */
+public class KVClient implements Closeable {
+	
+	private Socket socket;
+	private BufferedReader in;
+	private Writer out;
+	
+	public KVClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+	
+	// send a command line and wait for its reply line
+	public String execute(String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+		out.flush();
+		String reply = in.readLine();
+		if(reply == null)
+			throw new IOException("Connection closed by server");
+		return reply;
+	}
+	
+	public String get(String key) throws IOException {
+		String reply = execute("GET " + key);
+		return reply.startsWith(KVCommand.VALUE + " ") ? reply.substring(KVCommand.VALUE.length()+1) : null;
+	}
+	
+	public void put(String key, String value) throws IOException {
+		execute("PUT " + key + " " + value);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+	
+	
+	
+//****************************************************************
+//	main()
+//****************************************************************
+	
+	/**
+	 * @param args [host] [port] [optional connections] [optional seconds] [optional read fraction] [optional keys]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 2 || args.length > 6) {
+			System.out.println("ERROR: Provide 2 to 6 arguments");
+			System.out.println("\t(1) <host>: host of a KVApp node");
+			System.out.println("\t(2) <int>: its client port");
+			System.out.println("\t(3) <int>: optional number of connections, default 16");
+			System.out.println("\t(4) <int>: optional run time in seconds, default 10");
+			System.out.println("\t(5) <float>: optional fraction of commands that are GETs, default 0.9");
+			System.out.println("\t(6) <int>: optional number of keys, default 1000");
+			System.exit(-1);
+		}
+		
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int connections = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+		long seconds = (args.length > 3) ? Long.parseLong(args[3]) : 10;
+		double readFraction = (args.length > 4) ? Double.parseDouble(args[4]) : 0.9;
+		int keys = (args.length > 5) ? Integer.parseInt(args[5]) : 1000;
+		
+		long deadline = System.nanoTime() + seconds*1000000000L;
+		List<Long> readLatencies = Collections.synchronizedList(new ArrayList<>());
+		List<Long> writeLatencies = Collections.synchronizedList(new ArrayList<>());
+		AtomicLong errors = new AtomicLong();
+		
+		List<Thread> threads = new ArrayList<>();
+		for(int c=0; c<connections; c++){
+			Random rand = new Random(c);
+			Thread t = new Thread(() -> {
+				try (KVClient client = new KVClient(host, port)){
+					while(System.nanoTime() < deadline){
+						String key = "key" + rand.nextInt(keys);
+						boolean read = rand.nextDouble() < readFraction;
+						long t1 = System.nanoTime();
+						String reply = client.execute(read ? "GET " + key : "PUT " + key + " " + t1);
+						long t2 = System.nanoTime();
+						if(reply.startsWith(KVCommand.ERROR))
+							errors.incrementAndGet();
+						(read ? readLatencies : writeLatencies).add(t2-t1);
+					}
+				} catch (IOException e) {
+					System.err.println("Client connection failed: " + e.getMessage());
+					errors.incrementAndGet();
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for(Thread t : threads)
+			t.join();
+		
+		System.out.println("Operations per second = " + (readLatencies.size()+writeLatencies.size())/Math.max(1, seconds) + ", errors = " + errors.get());
+		report("GET", readLatencies);
+		report("PUT", writeLatencies);
+	}
+	
+	private static void report(String op, List<Long> latencies){
+		if(latencies.isEmpty())
+			return;
+		List<Long> sorted = new ArrayList<>(latencies);
+		Collections.sort(sorted);
+		long sum = 0;
+		for(long l : sorted)
+			sum += l;
+		System.out.println(op + " latency (ms): count = " + sorted.size()
+				+ ", mean = " + String.format("%.2f", sum/1e6/sorted.size())
+				+ ", p50 = " + String.format("%.2f", sorted.get(sorted.size()/2)/1e6)
+				+ ", p99 = " + String.format("%.2f", sorted.get(sorted.size()*99/100)/1e6));
+	}
+	
+}
@@ -0,0 +1,126 @@
+package paxos.kv;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * One key-value command. Writes are carried in the log as JSON inside a command batch, tagged
+ * with the proposing app's origin and a sequence number so that a command chosen twice is only
+ * applied once. GETs are never logged, they are answered with a lease read.
+ *
+ * The client protocol is one command per line:
+ *   GET key                   VALUE value | NOT_FOUND
+ *   PUT key value             OK
+ *   DEL key                   OK | NOT_FOUND
+ *   CAS key expected value    OK | FAILED
+ * Keys, and the expected and new values of a CAS, are single words. A PUT value is the rest of the line.
+ * Any command may instead get ERROR and a reason, e.g. for a write whose result was lost.
+ */
+public class KVCommand {
+	private static final Gson gson = new Gson();
+	
+	public enum Op { GET, PUT, DEL, CAS }
+	
+	public static final String OK = "OK";
+	public static final String NOT_FOUND = "NOT_FOUND";
+	public static final String FAILED = "FAILED";
+	public static final String VALUE = "VALUE";
+	public static final String ERROR = "ERROR";
+	
+	Op op;
+	String key;
+	String value;
+	String expected;	// CAS only
+	String origin;		// app that proposed the command, unique per run
+	long seq;
+	
+	public KVCommand(Op op, String key, String value, String expected) {
+		this.op = op;
+		this.key = key;
+		this.value = value;
+		this.expected = expected;
+	}
+	
+	
+	/**
+	 * Parse one line of the client protocol.
+	 */
+	public static KVCommand parse(String line) throws IllegalArgumentException{
+		String[] toks = line.trim().split("\\s+", 3);
+		Op op;
+		try{
+			op = Op.valueOf(toks[0].toUpperCase());
+		} catch(IllegalArgumentException e){
+			throw new IllegalArgumentException("Unknown command " + toks[0]);
+		}
+		
+		if(toks.length < 2)
+			throw new IllegalArgumentException(op + " needs a key");
+		switch(op){
+		case PUT:
+			if(toks.length < 3)
+				throw new IllegalArgumentException("PUT needs a key and a value");
+			return new KVCommand(op, toks[1], toks[2], null);
+		case CAS:
+			String[] args = (toks.length < 3) ? new String[0] : toks[2].split("\\s+");
+			if(args.length != 2)
+				throw new IllegalArgumentException("CAS needs a key, the expected value and a new value");
+			return new KVCommand(op, toks[1], args[1], args[0]);
+		default:
+			if(toks.length > 2)
+				throw new IllegalArgumentException(op + " takes only a key");
+			return new KVCommand(op, toks[1], null, null);
+		}
+	}
+	
+	
+	@Override
+	public String toString() throws IllegalArgumentException{
+		try{
+			return gson.toJson(this);
+		} catch(JsonSyntaxException e){
+			throw new IllegalArgumentException("Could not encode KVCommand from string");
+		}
+	}
+	
+	public static KVCommand fromString(String string) throws IllegalArgumentException{
+		try{
+			KVCommand cmd = gson.fromJson(string, KVCommand.class);
+			if(cmd == null || cmd.op == null || cmd.key == null || cmd.origin == null)
+				throw new IllegalArgumentException("Could not decode KVCommand from string");
+			return cmd;
+		} catch(JsonSyntaxException | IllegalStateException e){
+			throw new IllegalArgumentException("Could not decode KVCommand from string");
+		}
+	}
+	
+	public Op getOp() {
+		return op;
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	public String getExpected() {
+		return expected;
+	}
+	
+	public String getOrigin() {
+		return origin;
+	}
+	
+	public long getSeq() {
+		return seq;
+	}
+	
+	public void setSource(String origin, long seq){
+		this.origin = origin;
+		this.seq = seq;
+	}
+	
+}
@@ -0,0 +1,139 @@
+package paxos.kv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Serves the line protocol of KVCommand to clients on this machine. Each connection has a
+ * reader thread, which starts every command as it arrives so clients may pipeline, and a
+ * writer thread, which sends the replies in the order the commands came in.
+ */
+public class KVServer {
+	
+	private static final CompletableFuture<String> END = new CompletableFuture<>();	// queued after a connection's last command
+	
+	private Function<String, CompletableFuture<String>> execute;
+	private Logger log;
+	private ServerSocket serverSocket;
+	
+	/**
+	 * @param execute runs one command line and completes with the reply line
+	 */
+	public KVServer(int port, Function<String, CompletableFuture<String>> execute, Logger log) throws IOException {
+		this.execute = execute;
+		this.log = log;
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+	
+	public void start(){
+		log.info("Serving KV clients on port " + serverSocket.getLocalPort());
+		// not a daemon, it keeps the node's process running
+		new Thread(this::acceptLoop, "KVServer").start();
+	}
+	
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+	
+	private void acceptLoop(){
+		while(true){
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				serve(socket);
+			} catch (IOException e) {
+				log.error("KV server stopped accepting clients: " + e.getMessage());
+				return;
+			}
+		}
+	}
+	
+	private void serve(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		BlockingQueue<CompletableFuture<String>> replies = new LinkedBlockingQueue<>();
+		String name = "KVClient-" + socket.getPort();
+		
+		// END is queued however the loop ends, so the writer always closes the connection
+		startThread(() -> {
+			try {
+				String line;
+				while((line = in.readLine()) != null){
+					if(!line.trim().isEmpty())
+						replies.add(start(line));
+				}
+			} catch (IOException e) {
+				log.debug("KV client connection closed: " + e.getMessage());
+			} finally {
+				replies.add(END);
+			}
+		}, name + "-in");
+		
+		startThread(() -> {
+			try {
+				while(true){
+					CompletableFuture<String> next = replies.take();
+					if(next == END)
+						break;
+					out.write(reply(next));
+					out.write('\n');
+					// send once the replies ready now are written
+					if(replies.isEmpty() || !replies.peek().isDone())
+						out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				log.debug("KV client connection closed: " + e.getMessage());
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, name + "-out");
+	}
+	
+	// a command that fails to start still gets its reply, an error
+	private CompletableFuture<String> start(String line){
+		try {
+			return execute.apply(line);
+		} catch (RuntimeException e) {
+			log.warn("KV command " + line + " failed: " + e);
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+	
+	// every command gets a reply line, so the client's replies stay in step with its commands
+	private String reply(CompletableFuture<String> future){
+		try {
+			String reply = future.join();
+			return (reply != null) ? reply : KVCommand.ERROR + " no reply";
+		} catch (CompletionException e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			return KVCommand.ERROR + " " + cause.getMessage();
+		}
+	}
+	
+	private static void startThread(Runnable r, String name){
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+}
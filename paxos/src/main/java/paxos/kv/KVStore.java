@@ -0,0 +1,132 @@
+package paxos.kv;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The replicated key-value state: an in-memory index built by applying chosen commands in
+ * round order. Not thread safe, it is only used from the PaxosNode's protocol thread, where
+ * commands are delivered, reads run and snapshots are taken.
+ */
+public class KVStore {
+	private static final Gson gson = new Gson();
+	private static final long MAX_AHEAD = 65536;	// of the first missing sequence number of an origin; later ones are refused
+	private static final int MAX_SESSIONS = 4096;	// beyond this the least recently used is forgotten
+	private static final String TOO_FAR_AHEAD = KVCommand.ERROR + " too far ahead";
+	
+	private Map<String, String> data = new HashMap<>();
+	private Map<String, Session> sessions = new HashMap<>();	// by origin, to skip commands chosen twice
+	private long applied = 0;	// commands seen, to order sessions by last use the same way on every node
+	
+	// the sequence numbers applied from one origin. Commands may be chosen out of order,
+	// so those above the first one still missing are kept until the gap is filled. At most
+	// MAX_AHEAD are kept, as apply() refuses anything further ahead
+	private static class Session {
+		long next = 0;
+		Set<Long> ahead = new HashSet<>();
+		long lastUsed;
+		
+		// false if seq was applied before
+		boolean record(long seq){
+			if(seq < next || !ahead.add(seq))
+				return false;
+			while(ahead.remove(next))
+				next++;
+			return true;
+		}
+	}
+	
+	
+	/**
+	 * Apply a chosen write. A command too far ahead of the first one still missing from its
+	 * origin is refused, see isTooFarAhead(), and will not be applied later either: the
+	 * origin should go on under a new name. Of more than MAX_SESSIONS origins, the one
+	 * least recently used is forgotten, so a command of it chosen twice after that is applied twice.
+	 * @return the reply for the client, or null if the command was applied before
+	 */
+	public String apply(KVCommand cmd){
+		Session session = sessions.get(cmd.getOrigin());
+		if(session == null){
+			if(sessions.size() >= MAX_SESSIONS)
+				evictLeastRecent();
+			session = new Session();
+			sessions.put(cmd.getOrigin(), session);
+		}
+		session.lastUsed = applied++;
+		if(cmd.getSeq() - session.next >= MAX_AHEAD)
+			return TOO_FAR_AHEAD + ": sequence number " + cmd.getSeq() + " of " + cmd.getOrigin() + ", first missing is " + session.next;
+		if(!session.record(cmd.getSeq()))
+			return null;
+		
+		String key = cmd.getKey();
+		switch(cmd.getOp()){
+		case PUT:
+			data.put(key, cmd.getValue());
+			return KVCommand.OK;
+		case DEL:
+			return (data.remove(key) != null) ? KVCommand.OK : KVCommand.NOT_FOUND;
+		case CAS:
+			// a null expected value matches an absent key
+			if(!Objects.equals(cmd.getExpected(), data.get(key)))
+				return KVCommand.FAILED;
+			data.put(key, cmd.getValue());
+			return KVCommand.OK;
+		default:
+			return KVCommand.ERROR + " " + cmd.getOp() + " is not a write";
+		}
+	}
+	
+	// whether apply() refused a command as too far ahead of its origin
+	public static boolean isTooFarAhead(String reply){
+		return reply != null && reply.startsWith(TOO_FAR_AHEAD);
+	}
+	
+	private void evictLeastRecent(){
+		String oldest = null;
+		long oldestUse = Long.MAX_VALUE;
+		for(Map.Entry<String, Session> entry : sessions.entrySet()){
+			if(entry.getValue().lastUsed < oldestUse){
+				oldest = entry.getKey();
+				oldestUse = entry.getValue().lastUsed;
+			}
+		}
+		sessions.remove(oldest);
+	}
+	
+	// null if absent
+	public String get(String key){
+		return data.get(key);
+	}
+	
+	public int size(){
+		return data.size();
+	}
+	
+	
+	@Override
+	public String toString() throws IllegalArgumentException{
+		try{
+			return gson.toJson(this);
+		} catch(JsonSyntaxException e){
+			throw new IllegalArgumentException("Could not encode KVStore from string");
+		}
+	}
+	
+	public static KVStore fromString(String string) throws IllegalArgumentException{
+		try{
+			KVStore store = gson.fromJson(string, KVStore.class);
+			if(store == null || store.data == null || store.sessions == null)
+				throw new IllegalArgumentException("Could not decode KVStore from string");
+			return store;
+		} catch(JsonSyntaxException | IllegalStateException e){
+			throw new IllegalArgumentException("Could not decode KVStore from string");
+		}
+	}
+	
+}
@@ -1,21 +1,32 @@
 package paxos.messages;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
+import paxos.paxos.Proposal;
+
 public class Message {
 	private static final Gson gson = new Gson();
 	private MessageType type;
 	private String value;
 	private int number;
 	private int id;
+	private List<Proposal> proposals;	// carried as structured fields, not as JSON inside value
 	
 	public Message(MessageType type, String value, int number, int id) {
+		this(type, value, number, id, null);
+	}
+	
+	public Message(MessageType type, String value, int number, int id, List<Proposal> proposals) {
 		super();
 		this.type = type;
 		this.value = value;
 		this.number = number;
 		this.id = id;
+		this.proposals = proposals;
 	}
 	
 	public MessageType getType() {
@@ -33,6 +44,10 @@ public class Message {
 	public int getId() {
 		return id;
 	}
+	
+	public List<Proposal> getProposals() {
+		return (proposals == null) ? Collections.<Proposal>emptyList() : proposals;
+	}
 
 	@Override
 	public String toString() throws IllegalArgumentException{
@@ -0,0 +1,176 @@
+package paxos.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import paxos.paxos.PaxosConfig;
+import paxos.paxos.Proposal;
+
+/**
+ * Compact binary encoding of a Message, used once both ends of a connection
+ * agree on WireFormat.BINARY during the INIT handshake. Layout:
+ * 
+ *   varint type ordinal, varint id, zigzag varint number, string value,
+ *   varint proposal count, then per proposal: zigzag number, zigzag round, string value
+ * 
+ * Strings are a varint (byte length + 1) followed by UTF-8 bytes, with 0 meaning null.
+ * On a stream every encoded message is preceded by its varint length.
+ * Lengths and counts read from the wire are checked against the bytes left and
+ * PaxosConfig.MAX_FRAME_BYTES before anything is allocated for them.
+ */
+public class MessageCodec {
+	
+	private static final MessageType[] TYPES = MessageType.values();
+	private static final int MIN_PROPOSAL_BYTES = 3;	// two one-byte varints and a null string
+	
+	public static byte[] encode(Message msg){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+		writeVarint(out, msg.getType().ordinal());
+		writeVarint(out, msg.getId());
+		writeVarint(out, zigzag(msg.getNumber()));
+		writeString(out, msg.getValue());
+		
+		List<Proposal> proposals = msg.getProposals();
+		writeVarint(out, proposals.size());
+		for(Proposal prop : proposals){
+			writeVarint(out, zigzag(prop.getNumber()));
+			writeVarint(out, zigzag(prop.getRound()));
+			writeString(out, prop.getValue());
+		}
+		return out.toByteArray();
+	}
+	
+	public static Message decode(ByteBuffer buf) throws IllegalArgumentException{
+		try{
+			int ordinal = readVarint(buf);
+			if(ordinal < 0 || ordinal >= TYPES.length)
+				throw new IllegalArgumentException("Unknown message type " + ordinal);
+			int id = readVarint(buf);
+			int number = unzigzag(readVarint(buf));
+			String value = readString(buf);
+			
+			int count = readVarint(buf);
+			if(count < 0 || count > buf.remaining()/MIN_PROPOSAL_BYTES)
+				throw new IllegalArgumentException("Proposal count " + count + " does not fit in the " + buf.remaining() + " bytes left");
+			List<Proposal> proposals = null;
+			if(count > 0){
+				proposals = new ArrayList<>(count);
+				for(int i=0; i<count; i++){
+					int propNumber = unzigzag(readVarint(buf));
+					int round = unzigzag(readVarint(buf));
+					proposals.add(new Proposal(propNumber, readString(buf), round));
+				}
+			}
+			return new Message(TYPES[ordinal], value, number, id, proposals);
+		} catch(BufferUnderflowException e){
+			throw new IllegalArgumentException("Could not decode Message from bytes");
+		}
+	}
+	
+	// encode one message preceded by its varint length
+	public static byte[] encodeFrame(Message msg){
+		byte[] bytes = encode(msg);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length+5);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+		return out.toByteArray();
+	}
+	
+	// decode one length-prefixed message, or return null (leaving buf untouched)
+	// if the whole frame has not arrived yet
+	public static Message decodeFrame(ByteBuffer buf) throws IllegalArgumentException{
+		int start = buf.position();
+		int length = 0;
+		for(int shift=0; ; shift+=7){
+			if(!buf.hasRemaining()){
+				buf.position(start);
+				return null;
+			}
+			byte b = buf.get();
+			length |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				break;
+			if(shift > 28)
+				throw new IllegalArgumentException("Malformed frame length");
+		}
+		if(length < 0 || length > PaxosConfig.MAX_FRAME_BYTES)
+			throw new IllegalArgumentException("Frame length " + length + " is outside 0 to " + PaxosConfig.MAX_FRAME_BYTES);
+		
+		if(buf.remaining() < length){
+			buf.position(start);
+			return null;
+		}
+		
+		ByteBuffer body = buf.slice();
+		body.limit(length);
+		buf.position(buf.position()+length);
+		return decode(body);
+	}
+	
+	
+//****************************************************************
+//	varint helpers
+//****************************************************************
+	
+	public static void writeVarint(ByteArrayOutputStream out, int value){
+		while((value & ~0x7f) != 0){
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	public static int readVarint(ByteBuffer buf) throws IllegalArgumentException{
+		int value = 0;
+		for(int shift=0; shift<35; shift+=7){
+			byte b = buf.get();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
+	private static int zigzag(int n){
+		return (n << 1) ^ (n >> 31);
+	}
+	
+	private static int unzigzag(int n){
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	private static void writeString(ByteArrayOutputStream out, String s){
+		if(s == null){
+			writeVarint(out, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length+1);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static String readString(ByteBuffer buf){
+		int length = readVarint(buf);
+		if(length == 0)
+			return null;
+		length--;
+		if(length < 0 || length > buf.remaining())
+			throw new BufferUnderflowException();
+		
+		String s;
+		if(buf.hasArray()){
+			s = new String(buf.array(), buf.arrayOffset()+buf.position(), length, StandardCharsets.UTF_8);
+			buf.position(buf.position()+length);
+		} else {
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+	
+}
@@ -1,5 +1,6 @@
 package paxos.messages;
 
+// MessageCodec sends the ordinal, so only ever append new types at the end
 public enum MessageType {
 	PREPARE_REQUEST,
 	PREPARE_RESPONSE,
@@ -9,5 +10,16 @@ public enum MessageType {
 	NACK,
 	NACK_OLDROUND,
 	INIT,
-	APP
+	APP,
+	PING,
+	PONG,
+	HEARTBEAT,
+	HEARTBEAT_ACK,
+	FORWARD,
+	READ_INDEX,
+	READ_INDEX_REPLY,
+	CHOSEN_REQUEST,
+	COMMIT,
+	CATCHUP,
+	SNAPSHOT
 }
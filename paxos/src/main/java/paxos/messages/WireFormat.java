@@ -0,0 +1,67 @@
+package paxos.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import paxos.paxos.PaxosConfig;
+
+/**
+ * Encodings a connection can use after the INIT handshake.
+ * JSON sends Message.toString() one message per line; BINARY uses MessageCodec frames.
+ */
+public enum WireFormat {
+	JSON {
+		@Override
+		public byte[] encodeFrame(Message msg) {
+			return (msg.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public Message decodeFrame(ByteBuffer buf) throws IllegalArgumentException {
+			int start = buf.position();
+			int end = start;
+			while(end < buf.limit() && buf.get(end) != '\n')
+				end++;
+			if(end - start > PaxosConfig.MAX_FRAME_BYTES)
+				throw new IllegalArgumentException("Line of more than " + PaxosConfig.MAX_FRAME_BYTES + " bytes");
+			if(end == buf.limit())
+				return null;
+			
+			byte[] line = new byte[end-start];
+			buf.get(line);
+			buf.get();	// newline
+			Message msg = Message.fromString(new String(line, StandardCharsets.UTF_8));
+			if(msg == null)
+				throw new IllegalArgumentException("Could not decode Message from empty line");
+			return msg;
+		}
+	},
+	
+	BINARY {
+		@Override
+		public byte[] encodeFrame(Message msg) {
+			return MessageCodec.encodeFrame(msg);
+		}
+		
+		@Override
+		public Message decodeFrame(ByteBuffer buf) throws IllegalArgumentException {
+			return MessageCodec.decodeFrame(buf);
+		}
+	};
+	
+	// serialize one message, including whatever delimits it on the wire
+	public abstract byte[] encodeFrame(Message msg);
+	
+	// decode the next message in buf, or return null without consuming anything
+	// if it is not complete yet
+	public abstract Message decodeFrame(ByteBuffer buf) throws IllegalArgumentException;
+	
+	// parse a format name sent by a peer, falling back to JSON for peers that predate negotiation
+	public static WireFormat fromName(String name){
+		for(WireFormat format : values()){
+			if(format.name().equals(name))
+				return format;
+		}
+		return JSON;
+	}
+}
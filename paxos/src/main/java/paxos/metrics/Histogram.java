@@ -0,0 +1,88 @@
+package paxos.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of nanosecond values in log-linear buckets, as an HDR histogram keeps them: values below
+ * 64 have a bucket each, and every power of two above that is split into 32 buckets, so any
+ * percentile is reported within about 3% of the true value. Recording is lock free and does not
+ * allocate, so it may be done on the hot paths from any thread.
+ */
+public class Histogram {
+	
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;	// per power of two
+	private static final int LINEAR = 2*SUB_BUCKETS;	// values below this have a bucket each
+	private static final int BUCKETS = LINEAR + (63-SUB_BITS-1)*SUB_BUCKETS;
+	
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+	
+	public void record(long nanos){
+		long v = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(v));
+		sum.addAndGet(v);
+		max.accumulateAndGet(v, Math::max);
+	}
+	
+	public long getCount(){
+		long count = 0;
+		for(int i=0; i<BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+	
+	public double getMean(){
+		long count = getCount();
+		return (count == 0) ? 0 : (double)sum.get()/count;
+	}
+	
+	public long getMax(){
+		return max.get();
+	}
+	
+	// the highest value in the bucket holding the given percentile, or 0 if nothing was recorded
+	public long getPercentile(double percentile){
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for(int i=0; i<BUCKETS; i++){
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if(count == 0)
+			return 0;
+		
+		long rank = Math.max(1, (long)Math.ceil(percentile/100*count));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++){
+			seen += snapshot[i];
+			if(seen >= rank)
+				return Math.min(lowest(i+1)-1, getMax());
+		}
+		return getMax();
+	}
+	
+	
+	static int bucket(long v){
+		if(v < LINEAR)
+			return (int)v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);	// at least SUB_BITS+1
+		int shift = exp - SUB_BITS;
+		return LINEAR + (exp-SUB_BITS-1)*SUB_BUCKETS + (int)(v >>> shift) - SUB_BUCKETS;
+	}
+	
+	// lowest value counted in bucket i
+	static long lowest(int i){
+		if(i < LINEAR)
+			return i;
+		if(i >= BUCKETS)
+			return Long.MAX_VALUE;
+		int k = i - LINEAR;
+		int exp = k/SUB_BUCKETS + SUB_BITS + 1;
+		long mantissa = k%SUB_BUCKETS + SUB_BUCKETS;
+		return mantissa << (exp - SUB_BITS);
+	}
+	
+}
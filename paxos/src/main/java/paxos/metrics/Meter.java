@@ -0,0 +1,39 @@
+package paxos.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events and their rate over the last second, which the MetricsRegistry's timer updates.
+ */
+public class Meter {
+	
+	private LongAdder count = new LongAdder();
+	private volatile double rate;	// per second
+	private long lastCount;
+	private long lastNanos;
+	
+	public void mark(){
+		count.increment();
+	}
+	
+	public void mark(long n){
+		count.add(n);
+	}
+	
+	public long getCount(){
+		return count.sum();
+	}
+	
+	public double getRate(){
+		return rate;
+	}
+	
+	synchronized void tick(long nanos){
+		long c = count.sum();
+		if(lastNanos != 0 && nanos > lastNanos)
+			rate = (c - lastCount)*1e9/(nanos - lastNanos);
+		lastCount = c;
+		lastNanos = nanos;
+	}
+	
+}
@@ -0,0 +1,70 @@
+package paxos.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only JMX view of a MetricsRegistry, one attribute per entry of its snapshot().
+ * The attribute list is built on every request, so metrics created later show up too.
+ */
+class MetricsMBean implements DynamicMBean {
+	
+	private MetricsRegistry registry;
+	
+	MetricsMBean(MetricsRegistry registry){
+		this.registry = registry;
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = registry.snapshot().get(attribute);
+		if(value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Number> values = registry.snapshot();
+		AttributeList list = new AttributeList();
+		for(String name : attributes){
+			if(values.containsKey(name))
+				list.add(new Attribute(name, values.get(name)));
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		SortedMap<String, Number> values = registry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for(Map.Entry<String, Number> e : values.entrySet())
+			attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+		return new MBeanInfo(getClass().getName(), "Paxos node metrics", attributes, null, null, null);
+	}
+	
+}
@@ -0,0 +1,147 @@
+package paxos.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * The counters, gauges, meters and latency histograms of one node, by name. Metrics are
+ * created on first use and live as long as the node. Once started, the registry is
+ * published over JMX as paxos:type=Metrics,node=id and can write its snapshot() to a
+ * JSON file periodically, so a cluster under load can be watched without parsing its logs.
+ */
+public class MetricsRegistry {
+	
+	private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	
+	private Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private Map<String, Meter> meters = new ConcurrentHashMap<>();
+	private Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private ScheduledExecutorService timer;
+	
+	public LongAdder counter(String name){
+		return counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+	
+	// value is read whenever a snapshot is taken, from the thread taking it
+	public void gauge(String name, LongSupplier value){
+		gauges.put(name, value);
+	}
+	
+	public Meter meter(String name){
+		return meters.computeIfAbsent(name, n -> new Meter());
+	}
+	
+	public Histogram histogram(String name){
+		return histograms.computeIfAbsent(name, n -> new Histogram());
+	}
+	
+	
+	/**
+	 * Every metric's current value by name. Meters give name.count and name.perSec, histograms
+	 * give name.count, name.mean, name.max and percentiles such as name.p99.
+	 */
+	public SortedMap<String, Number> snapshot(){
+		SortedMap<String, Number> values = new TreeMap<>();
+		for(Map.Entry<String, LongAdder> e : counters.entrySet())
+			values.put(e.getKey(), e.getValue().sum());
+		for(Map.Entry<String, LongSupplier> e : gauges.entrySet())
+			values.put(e.getKey(), e.getValue().getAsLong());
+		for(Map.Entry<String, Meter> e : meters.entrySet()){
+			values.put(e.getKey() + ".count", e.getValue().getCount());
+			values.put(e.getKey() + ".perSec", e.getValue().getRate());
+		}
+		for(Map.Entry<String, Histogram> e : histograms.entrySet()){
+			Histogram h = e.getValue();
+			values.put(e.getKey() + ".count", h.getCount());
+			values.put(e.getKey() + ".mean", h.getMean());
+			values.put(e.getKey() + ".max", h.getMax());
+			for(int i=0; i<PERCENTILES.length; i++)
+				values.put(e.getKey() + "." + PERCENTILE_NAMES[i], h.getPercentile(PERCENTILES[i]));
+		}
+		return values;
+	}
+	
+	
+	/**
+	 * Start updating the meters every second, register the registry over JMX if jmx is set,
+	 * and write a snapshot to dumpFile every dumpMs, unless dumpMs is 0.
+	 */
+	public synchronized void start(int id, boolean jmx, File dumpFile, long dumpMs, Logger log){
+		if(timer != null)
+			return;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "node" + id + "-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+		
+		if(jmx){
+			try {
+				ObjectName name = new ObjectName("paxos:type=Metrics,node=" + id);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+				log.info("Metrics published over JMX as " + name);
+			} catch (JMException e) {
+				log.warn("Could not publish metrics over JMX: " + e.getMessage());
+			}
+		}
+		
+		if(dumpMs > 0){
+			log.info("Writing metrics to " + dumpFile + " every " + dumpMs + " ms");
+			timer.scheduleAtFixedRate(() -> dump(dumpFile, log), dumpMs, dumpMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void tick(){
+		long now = System.nanoTime();
+		for(Meter meter : meters.values())
+			meter.tick(now);
+	}
+	
+	// write to a temporary file and rename it over the old one, so readers never see half a dump
+	private void dump(File file, Logger log){
+		SortedMap<String, Object> out = new TreeMap<>(snapshot());
+		out.put("timestamp", System.currentTimeMillis());
+		
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if(dir != null)
+				dir.mkdirs();
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)){
+				gson.toJson(out, w);
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Could not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+	
+}
@@ -0,0 +1,83 @@
+package paxos.network;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One selector thread. Channels registered here have a Handler attachment that is
+ * called whenever the channel is ready. Other threads hand work to the loop with execute().
+ */
+class IoLoop implements Runnable {
+	
+	interface Handler {
+		void handle(SelectionKey key) throws IOException;
+	}
+	
+	private Selector selector;
+	private Queue<Runnable> tasks;
+	private Thread thread;
+	private Logger log;
+	
+	IoLoop(String name, Logger log) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.log = log;
+		this.thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+	
+	void start(){
+		thread.start();
+	}
+	
+	Selector selector(){
+		return selector;
+	}
+	
+	// run a task on the loop thread, e.g. a registration or a write
+	void execute(Runnable task){
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		while(true){
+			try {
+				selector.select();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						((Handler)key.attachment()).handle(key);
+					} catch (IOException | CancelledKeyException e) {
+						log.warn(thread.getName() + ": " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						key.cancel();
+					}
+				}
+				
+				Runnable task;
+				while((task = tasks.poll()) != null){
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.warn(thread.getName() + ": " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						e.printStackTrace();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,26 @@
+package paxos.network;
+
+import java.util.Random;
+
+/**
+ * One-way message latency, in virtual milliseconds, for a SimulatedNetwork.
+ */
+public interface LatencyModel {
+	
+	long sample(Random rand);
+	
+	static LatencyModel fixed(long millis){
+		return rand -> millis;
+	}
+	
+	static LatencyModel uniform(long minMillis, long maxMillis){
+		return rand -> minMillis + (long)(rand.nextDouble()*(maxMillis-minMillis+1));
+	}
+	
+	// at least minMillis, with an exponential tail averaging meanMillis in total
+	static LatencyModel exponential(long minMillis, long meanMillis){
+		double tail = Math.max(0, meanMillis-minMillis);
+		return rand -> minMillis + (long)(-tail*Math.log(1-rand.nextDouble()));
+	}
+	
+}
@@ -0,0 +1,10 @@
+package paxos.network;
+
+import paxos.messages.Message;
+
+/**
+ * Receives every message that arrives at a NetworkNode, including messages a node sends to itself.
+ */
+public interface MessageHandler {
+	void onMessage(Message msg);
+}
@@ -1,21 +1,32 @@
 package paxos.network;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.Logger;
@@ -23,32 +34,53 @@ import org.apache.logging.log4j.Logger;
 import paxos.NodeFileParser;
 import paxos.messages.Message;
 import paxos.messages.MessageType;
-import paxos.paxos.SimulatedCrashException;
+import paxos.messages.WireFormat;
+import paxos.metrics.MetricsRegistry;
+import paxos.paxos.PaxosConfig;
 
 /**
  * Base class to build on. This class will only worry about creating and managing TCP
- * connections to other nodes. Algorithmic pieces will act as decorators on this base class. 
+ * connections to other nodes. Algorithmic pieces will act as decorators on this base class.
+ *
+ * All sockets are non-blocking and serviced by a small fixed pool of selector threads
+ * (paxos.io.threads), so the thread count does not grow with the cluster size.
+ * Incoming messages are passed to the MessageHandler on the selector thread.
+ *
+ * Connections are made in parallel without blocking, and a lost or failed connection is
+ * dialed again after a jittered exponential backoff. Messages to a peer that is not connected
+ * wait in a bounded queue and are sent once it is.
+ *
+ * Messages queued for a peer are copied into one buffer and written with a single
+ * write per selector loop, or per sendBatch() call, rather than one write each.
+ * A broadcast() is encoded once and the same bytes are queued for every peer.
  * @author eyms
  *
  */
-public class NetworkNode {
+public class NetworkNode implements Transport {
 	
 	private static final int TIMEOUT = 500;
-	private static final long WAIT_TIME = 500;
+	private static final long RECONNECT_BASE_MS = 50;
+	private static final int READ_BUFFER_SIZE = 64*1024;
+	private static final int WRITE_BUFFER_SIZE = 64*1024;
 	private int id;
-	private List<NodeInfo> nodes;
-	private List<Integer> ports; 
-	private Thread connectThread;
-	private ServerSocket serverSocket;
+	private List<NodeInfo> nodes;	// replaced by selector threads as connections come and go, read by any thread
+	private List<Integer> ports;
+	private List<Peer> peers;
+	private IoLoop[] ioLoops;
+	private int nextLoop = 0;
+	private ServerSocketChannel serverChannel;
+	private ThreadLocal<Set<NodeInfo>> batch = new ThreadLocal<>();	// connections written to in this thread's sendBatch()
 	private boolean restart;
 	private boolean running;
-	private Deque<Message> selfMessages;
+	private MessageHandler handler;
 	private List<String[]> nodeListFileTokens;
 	
 	// reliability stuff
 	private int avgMsgDelay = 0;	// multiplier to DELAY_TIME by which to delay messages
-	private float unreliability = 0; // probability of a "crash" (don't respond to a message) 
+	private float unreliability = 0; // probability of a "crash" (don't respond to a message)
 	private static final int DELAY_TIME = 100;
+	private ScheduledExecutorService delayTimer;	// simulated delays and protocol timers
+	private Random rand = new Random();
 	
 	// Logging
 	private Logger log;
@@ -59,7 +91,11 @@ public class NetworkNode {
 		this.nodeListFileTokens = new ArrayList<>();
 		parseNodeFile(nodeListFileName);
 		this.log = log;
-		this.selfMessages = new ArrayDeque<>();
+		delayTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "node" + id + "-timer");
+			t.setDaemon(true);
+			return t;
+		});
 		
 		log.info("Created new " + this.getClass().getSimpleName() + " with:");
 		log.info("\tid = " + id);
@@ -67,6 +103,9 @@ public class NetworkNode {
 		log.info("\tresart = " + restart);
 		log.info("\tavgMsgDelay = " + avgMsgDelay);
 		log.info("\tunreliability = " + unreliability);
+		log.info("\tioThreads = " + PaxosConfig.IO_THREADS);
+		log.info("\tqueueSize = " + PaxosConfig.IO_QUEUE_SIZE);
+		log.info("\treconnectMaxMs = " + PaxosConfig.RECONNECT_MAX_MS);
 		log.info("Node List:");
 		for(String node : getNodesInfo()){
 			log.info("\t" + node);
@@ -91,6 +130,33 @@ public class NetworkNode {
 		return nodeListFileTokens.get(nodeId);
 	}
 	
+	/**
+	 * Set the callback for incoming messages. Must be called before run().
+	 */
+	public void setMessageHandler(MessageHandler handler){
+		this.handler = handler;
+	}
+	
+	/**
+	 * Publish the traffic to and from each peer, and how many messages wait for it, as net.peer.<id>.*
+	 */
+	public void setMetrics(MetricsRegistry metrics){
+		for(int i=0; i<peers.size(); i++){
+			if(i == id)
+				continue;
+			int theirId = i;
+			Peer peer = peers.get(i);
+			String prefix = "net.peer." + i + ".";
+			metrics.gauge(prefix + "sentMessages", peer.sentMessages::sum);
+			metrics.gauge(prefix + "sentBytes", peer.sentBytes::sum);
+			metrics.gauge(prefix + "receivedMessages", peer.receivedMessages::sum);
+			metrics.gauge(prefix + "receivedBytes", peer.receivedBytes::sum);
+			metrics.gauge(prefix + "dropped", peer.dropped::sum);
+			metrics.gauge(prefix + "pending", () -> peer.pending.size());
+			metrics.gauge(prefix + "outbound", () -> nodes.get(theirId).outbound.size());
+		}
+	}
+	
 	private void parseNodeFile(String filename) {
 		
 		nodeListFileTokens = NodeFileParser.parseNodeFile(filename);
@@ -100,10 +166,12 @@ public class NetworkNode {
 		avgMsgDelay = Integer.parseInt(nodeListFileTokens.get(id)[NodeFileParser.MSG_DELAY_COL]);
 		unreliability = Float.parseFloat(nodeListFileTokens.get(id)[NodeFileParser.UNRELIABILITY_COL]);
 		
-		nodes = new ArrayList<>();
+		nodes = new CopyOnWriteArrayList<>();
 		ports = new ArrayList<>();
+		peers = new ArrayList<>();
 		
 		for(String[] toks : nodeListFileTokens){
+			peers.add(new Peer());
 			NodeInfo newNode = new NodeInfo();
 			try {
 				newNode.address = InetAddress.getByName(toks[NodeFileParser.IP_COL]);
@@ -118,7 +186,7 @@ public class NetworkNode {
 		nodes.get(id).connected = true;
 		
 	}
-
+	
 	public int getPort(){
 		return nodes.get(id).port;
 	}
@@ -145,168 +213,427 @@ public class NetworkNode {
 	
 	
 	/**
-	 * Send a message to another node by id
+	 * Send a message to another node by id. The message is queued on the
+	 * peer's connection and written by its selector thread. While the peer is not
+	 * connected it waits in the peer's outbound queue, and is dropped if that is full.
 	 */
 	public boolean sendMessage(int theirId, Message msg){
-		/*
-		if(!unreliabilitySimulator())
-			return true;
-		*/
+		log.debug("Sending message \"{}\" to node {}", msg, theirId);
 		
-		if(!isConnected(theirId)){
-			log.warn("Error sending message to node " + theirId + ": node not connected");
-			return false;
+		// messages to self skip the network but are still delivered asynchronously
+		if(theirId == id){
+			ioLoops[0].execute(() -> receiveMessage(msg));
+			return true;
 		}
-		log.debug("Sending message \"" + msg + "\" to node " + theirId );
 		
-		if(theirId == id){
-			selfMessages.add(msg);
+		if(!isConnected(theirId)){
+			if(!peers.get(theirId).pending.offer(msg)){
+				peers.get(theirId).dropped.increment();
+				log.debug("Dropping message to node " + theirId + ": node not connected and its queue is full");
+				return false;
+			}
+			// it may have connected since, after its queue was sent
+			if(isConnected(theirId))
+				sendPending(theirId);
 			return true;
 		}
 		
-		NodeInfo node = nodes.get(theirId);
-		node.writer.println(msg.toString());
-		node.writer.flush();
+		nodes.get(theirId).send(msg);
 		return true;
 	}
 	
 	
 	/**
-	 * Receive a message from another node   
+	 * Send one message to several nodes. It is encoded once for each wire format in use,
+	 * and every connection of that format writes the same read-only bytes.
 	 */
-	public Message receiveMessage(int theirId) throws SimulatedCrashException{
-		
-		if(!unreliabilitySimulator())
-			throw new SimulatedCrashException();
-		
-		
-		// receive from self
-		if(theirId == id){
-			Message myMsg = null;
-			while(myMsg == null){
-				myMsg = selfMessages.poll();
-				try {
-					Thread.sleep(5);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	public void broadcast(Collection<Integer> ids, Message msg){
+		log.debug("Sending message \"{}\" to nodes {}", msg, ids);
+		ByteBuffer[] frames = new ByteBuffer[WireFormat.values().length];
+		for(int theirId : ids){
+			NodeInfo node = nodes.get(theirId);
+			if(theirId == id || !node.connected){
+				sendMessage(theirId, msg);
+				continue;
 			}
-			log.debug("Received message \"" + myMsg + "\" from node " + theirId );
-			return myMsg;
+			
+			int f = node.format.ordinal();
+			if(frames[f] == null)
+				frames[f] = ByteBuffer.wrap(node.format.encodeFrame(msg)).asReadOnlyBuffer();
+			node.send(frames[f].duplicate());
+		}
+	}
+	
+	
+	/**
+	 * Run sends, e.g. everything one protocol step produced, and only then flush the
+	 * connections they were queued on, so that messages to one peer share a write.
+	 */
+	public void sendBatch(Runnable sends){
+		if(batch.get() != null){
+			sends.run();
+			return;
 		}
 		
-		String msg = null;
-		NodeInfo node = nodes.get(theirId);
+		Set<NodeInfo> written = new HashSet<>();
+		batch.set(written);
 		try {
-			msg = node.reader.readLine();
-			log.debug("Received message \"" + msg + "\" from node " + theirId );
-			return Message.fromString(msg);
-		} catch (SocketException e){
-				log.warn("Lost connection to node " + theirId);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (IllegalArgumentException e){
-			log.error("Failed to decode message \"" + msg + "\" from node " + theirId);
-		} 
-		
-		return null;
-
-	}	
+			sends.run();
+		} finally {
+			batch.remove();
+			for(NodeInfo node : written)
+				node.scheduleFlush();
+		}
+	}
+	
+	
+	/**
+	 * Hand a received message to the handler, after the simulated network delay if any
+	 */
+	private void receiveMessage(Message msg){
+		log.debug("Received message \"{}\" from node {}", msg, msg.getId());
+		
+		int waitTime = unreliabilitySimulator();
+		if(waitTime > 0){
+			delayTimer.schedule(() -> dispatch(msg), waitTime, TimeUnit.MILLISECONDS);
+		} else {
+			dispatch(msg);
+		}
+	}
 	
 	
-	private boolean unreliabilitySimulator(){
+	private void dispatch(Message msg){
 		try {
-			Random rand = new Random(System.currentTimeMillis());
-			float randVal = rand.nextFloat();
-
-			/*
-			// generate random "crashes"
-			if(randVal < unreliability){
-				log.fine("Node " + id + " CRASH with " + randVal + " < " + unreliability);
-				Thread.sleep(CRASH_TIME);
-				return false;
-			}
-			*/
-			
-			// insert random wait time based on msgDelay
-			int waitTime = DELAY_TIME * avgMsgDelay;
-			Thread.sleep((long)(randVal*waitTime));
-			
-		} catch (InterruptedException e) {
+			handler.onMessage(msg);
+		} catch (RuntimeException e){
+			log.warn(e.getClass().getSimpleName() + ": " + e.getMessage());
 			e.printStackTrace();
 		}
+	}
+	
+	
+	// random delay in ms to add to a received message, based on msgDelay.
+	// The delay is scheduled rather than slept so a selector thread is never blocked.
+	private int unreliabilitySimulator(){
+		if(avgMsgDelay == 0)
+			return 0;
 		
-		return true;
+		/*
+		// generate random "crashes"
+		if(randVal < unreliability){
+			log.fine("Node " + id + " CRASH with " + randVal + " < " + unreliability);
+			Thread.sleep(CRASH_TIME);
+			return false;
+		}
+		*/
+		
+		int waitTime = DELAY_TIME * avgMsgDelay;
+		return (int)(rand.nextFloat()*waitTime);
 	}
 	
 	
 //****************************************************************
 //	Private Methods -- mostly network related
-//****************************************************************	
+//****************************************************************
 	
-
-
-	/**
-	 * Send a message to another node
-	 */
-	private void sendMessage(NodeInfo node, Message msg) {
-		log.trace("Sending message \"" + msg + "\" to " + node );
-		node.writer.println(msg.toString());
-		node.writer.flush();
-	}
 	
 	/**
-	 * Receive a message from another node   
+	 * What is kept of a peer from one connection to the next: messages waiting
+	 * for it to connect, and how often connecting to it has failed in a row.
 	 */
-	private Message receiveMessage(NodeInfo node){
-		String msg = null;
-		try {
-			msg = node.reader.readLine();
-			log.trace("Received message \"" + msg + "\" from " + node );
-			return Message.fromString(msg);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (IllegalArgumentException e){
-			log.error("Failed to decode message \"" + msg + "\" from " + node);
-		}
-		
-		return null;
-
+	class Peer {
+		Queue<Message> pending = new ArrayBlockingQueue<>(PaxosConfig.IO_QUEUE_SIZE);
+		int attempts;
+		boolean dialing;	// a connection attempt is in progress or scheduled
+		LongAdder sentMessages = new LongAdder();	// frames queued on its connections
+		LongAdder sentBytes = new LongAdder();
+		LongAdder receivedMessages = new LongAdder();
+		LongAdder receivedBytes = new LongAdder();
+		LongAdder dropped = new LongAdder();	// while not connected, with the queue full
 	}
 	
 	
 	/**
-	 * Private class to track node info. Just a struct. 
+	 * Private class to track node info and the state of its connection.
+	 * Reads and writes happen on the selector thread the connection is registered with.
 	 */
-	class NodeInfo{
+	class NodeInfo implements IoLoop.Handler{
 		InetAddress address;
 		int port;
-		boolean connected;
-		Socket sock;
-		PrintWriter writer;
-		BufferedReader reader;
-		int connectionAttempts;
+		volatile boolean connected;
+		int theirId = -1;
+		SocketChannel channel;
+		IoLoop loop;
+		SelectionKey key;
+		boolean handshaking;	// incoming connection still waiting for INIT
+		boolean dialing;		// outgoing connection still waiting to connect or for the INIT reply
+		volatile boolean closed;
+		WireFormat format = WireFormat.JSON;
+		ByteBuffer readBuffer;
+		ByteBuffer writeBuffer;	// queued frames are copied here and written together
+		Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		AtomicBoolean writeScheduled = new AtomicBoolean(false);
 		
 		public NodeInfo() {}
 		
-		public NodeInfo(Socket sock) {
-			try{
-				this.sock = sock;
-				address = sock.getInetAddress();
-				port = sock.getPort();
-				writer = new PrintWriter(sock.getOutputStream());
-				reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-				connected = true;
-			} catch(IOException e){
-				log.warn("IOException from node " + this);
-				connected = false;
-			}
+		public NodeInfo(SocketChannel channel) {
+			this.channel = channel;
+			address = channel.socket().getInetAddress();
+			port = channel.socket().getPort();
+			connected = true;
+			readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		}
+		
+		// an outgoing connection to a known node, not yet connected
+		public NodeInfo(SocketChannel channel, int theirId) {
+			this.channel = channel;
+			this.theirId = theirId;
+			address = nodes.get(theirId).address;
+			port = ports.get(theirId);
+			dialing = true;
+			readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
 		}
 		
 		public int isConnected() {
 			return connected ? 1 : 0;
 		}
 		
+		// switch to non-blocking mode and hand the channel to a selector thread
+		void register(IoLoop loop) throws IOException {
+			this.loop = loop;
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			loop.execute(() -> {
+				try {
+					key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+				} catch (ClosedChannelException e) {
+					close();
+				}
+			});
+		}
+		
+		// queue a message; may be called from any thread
+		void send(Message msg){
+			send(ByteBuffer.wrap(format.encodeFrame(msg)));
+		}
+		
+		// queue an encoded frame. The buffer's position is moved as it is written
+		void send(ByteBuffer frame){
+			if(theirId >= 0){
+				Peer peer = peers.get(theirId);
+				peer.sentMessages.increment();
+				peer.sentBytes.add(frame.remaining());
+			}
+			outbound.add(frame);
+			Set<NodeInfo> written = batch.get();
+			if(written != null)
+				written.add(this);
+			else
+				scheduleFlush();
+		}
+		
+		// write what is queued once the selector thread gets to it; sends queued meanwhile go along
+		void scheduleFlush(){
+			if(writeScheduled.compareAndSet(false, true))
+				loop.execute(this::flush);
+		}
+		
+		private void flush(){
+			writeScheduled.set(false);
+			// sent by a thread that got this connection just before it was closed or replaced
+			if(closed){
+				if(theirId >= 0 && !outbound.isEmpty()){
+					requeueOutbound();
+					sendPending(theirId);
+				}
+				return;
+			}
+			try {
+				write();
+			} catch (IOException e) {
+				log.warn("Error sending message to node " + theirId + ": " + e.getMessage());
+				close();
+			}
+		}
+		
+		// write as much queued data as the socket accepts, waiting for OP_WRITE if it fills up.
+		// Frames are packed into the write buffer so that one write sends many of them
+		private void write() throws IOException {
+			if(key == null || !key.isValid())
+				return;
+			if(writeBuffer == null)
+				writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			
+			while(true){
+				// behind whatever the socket did not take last time
+				ByteBuffer buf;
+				while(writeBuffer.hasRemaining() && (buf = outbound.peek()) != null){
+					if(buf.remaining() <= writeBuffer.remaining()){
+						writeBuffer.put(buf);
+						outbound.poll();
+					} else {
+						// a frame larger than the space left is split
+						ByteBuffer part = buf.duplicate();
+						part.limit(part.position() + writeBuffer.remaining());
+						writeBuffer.put(part);
+						buf.position(part.position());
+					}
+				}
+				if(writeBuffer.position() == 0){
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					return;
+				}
+				
+				writeBuffer.flip();
+				channel.write(writeBuffer);
+				boolean full = writeBuffer.hasRemaining();
+				writeBuffer.compact();
+				if(full){
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			try {
+				if(key.isConnectable())
+					finishConnect();
+				if(key.isValid() && key.isReadable())
+					read();
+				if(key.isValid() && key.isWritable())
+					write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+		
+		// the socket connected; introduce ourselves and wait for the reply
+		private void finishConnect() throws IOException {
+			if(!channel.finishConnect())
+				return;
+			key.interestOps(SelectionKey.OP_READ);
+			
+			// send init message identifying myself and proposing a wire format
+			send(new Message(MessageType.INIT, PaxosConfig.WIRE_FORMAT.name(), id, id));
+		}
+		
+		private void read() throws IOException {
+			if(channel.read(readBuffer) < 0)
+				throw new EOFException();
+			
+			readBuffer.flip();
+			while(readBuffer.hasRemaining()){
+				Message msg;
+				int start = readBuffer.position();
+				try {
+					msg = format.decodeFrame(readBuffer);
+				} catch (IllegalArgumentException e){
+					// we cannot tell where the next frame starts, so drop the connection
+					log.error("Failed to decode message from node " + theirId + ", closing the connection: " + e.getMessage());
+					close();
+					return;
+				}
+				if(msg == null)
+					break;
+				if(theirId >= 0){
+					Peer peer = peers.get(theirId);
+					peer.receivedMessages.increment();
+					peer.receivedBytes.add(readBuffer.position() - start);
+				}
+				
+				if(handshaking)
+					initIncomingConnection(this, msg);
+				else if(dialing)
+					initOutgoingConnection(this, msg);
+				else
+					receiveMessage(msg);
+				
+				if(!channel.isOpen())
+					return;
+			}
+			readBuffer.compact();
+			
+			// make room for a frame larger than the buffer, up to the largest allowed frame and its length
+			if(!readBuffer.hasRemaining()){
+				int capacity = (int)Math.min((long)readBuffer.capacity()*2, PaxosConfig.MAX_FRAME_BYTES + 5L);
+				if(capacity <= readBuffer.capacity()){
+					log.error("Frame from node " + theirId + " is over " + PaxosConfig.MAX_FRAME_BYTES + " bytes, closing the connection");
+					close();
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		}
+		
+		void close(){
+			if(closed)
+				return;
+			closed = true;
+			
+			boolean replaced = false;
+			if(theirId >= 0 && nodes.get(theirId) == this){
+				log.warn("Lost connection to node " + theirId);
+				connected = false;
+				requeueOutbound();
+				// the higher id dials, as on a fresh start
+				if(theirId < id)
+					reconnect(theirId);
+			} else if(theirId >= 0 && !dialing && !handshaking){
+				// a newer connection to the node took over, what is queued here goes out on it
+				log.debug("Closing replaced connection to node " + theirId);
+				requeueOutbound();
+				replaced = true;
+			} else if(dialing){
+				log.debug("Connecting to node " + theirId + " failed");
+				Peer peer = peers.get(theirId);
+				synchronized(peer){
+					peer.dialing = false;
+				}
+				reconnect(theirId);
+			}
+			if(key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			outbound.clear();
+			if(replaced)
+				sendPending(theirId);
+		}
+		
+		// frames not written yet go back to the peer's queue, to be sent once it reconnects. The
+		// new connection may use another wire format, so they are queued as messages again. Bytes
+		// already in the write buffer are lost with the connection, as are those in the socket's
+		private void requeueOutbound(){
+			Peer peer = peers.get(theirId);
+			int requeued = 0;
+			synchronized(peer){
+				ByteBuffer frame;
+				while((frame = outbound.poll()) != null){
+					frame.rewind();
+					Message msg;
+					try {
+						msg = format.decodeFrame(frame);
+					} catch (IllegalArgumentException e){
+						msg = null;	// over the frame limit, the peer would have closed on it anyway
+					}
+					if(msg != null && msg.getType() == MessageType.INIT)
+						continue;
+					if(msg != null && peer.pending.offer(msg))
+						requeued++;
+					else
+						peer.dropped.increment();
+				}
+			}
+			if(requeued > 0)
+				log.debug("Requeued " + requeued + " unsent messages for node " + theirId);
+		}
+		
 		@Override
 		public String toString(){
 			return address.toString() + ":" + port;
@@ -320,178 +647,272 @@ public class NetworkNode {
 	 */
 	private void networkInit(){
 		try {
-			serverSocket = new ServerSocket(getPort());
+			ioLoops = new IoLoop[PaxosConfig.IO_THREADS];
+			for(int i=0; i<ioLoops.length; i++){
+				ioLoops[i] = new IoLoop("node" + id + "-io" + i, log);
+				ioLoops[i].start();
+			}
+			
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(getPort()));
+			serverChannel.configureBlocking(false);
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
-		startConnectionThread();
+		startConnectionListener();
 		connectToOtherServers(restart);
 	}
 	
 	
+	// spread connections over the selector threads
+	private synchronized IoLoop nextIoLoop(){
+		IoLoop loop = ioLoops[nextLoop];
+		nextLoop = (nextLoop+1) % ioLoops.length;
+		return loop;
+	}
+	
+	
 	/**
-	 * Start the infinite TCP listening thread
+	 * Register the listening socket with the first selector thread
 	 */
-	private void startConnectionThread(){
+	private void startConnectionListener(){
 		log.info("Initiating connections");
+		log.debug("Listenining for connection on port "+ (getPort()));
 		
-		// start eternal socket acceptance loop
-		connectThread = new Thread(new Runnable(){
-			@Override
-			public void run() {
-				connectionLoop();
+		IoLoop loop = ioLoops[0];
+		loop.execute(() -> {
+			try {
+				serverChannel.register(loop.selector(), SelectionKey.OP_ACCEPT, (IoLoop.Handler)this::acceptConnection);
+			} catch (ClosedChannelException e) {
+				e.printStackTrace();
 			}
 		});
-		connectThread.start();
 	}
 	
 	
 	/**
-	 * Infinite TCP connection listener loop
+	 * Accept a connection from an unknown server. It identifies itself with an INIT message.
 	 */
-	private void connectionLoop(){
-		while(true){
-			log.debug("Listenining for connection on port "+ (getPort()));
-			try {
-				// set up connection from unknown server
-				Socket sock = serverSocket.accept();
-				initIncomingConnection(sock);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	private void acceptConnection(SelectionKey key) throws IOException {
+		SocketChannel channel;
+		while((channel = serverChannel.accept()) != null){
+			NodeInfo node = new NodeInfo(channel);
+			node.handshaking = true;
+			node.register(nextIoLoop());
 		}
 	}
 	
 	
 	/**
-	 * Initialize a new outgoing connection. 
+	 * Initialize a new incoming connection once its INIT message has arrived.
 	 */
-	private void initIncomingConnection(Socket sock) throws IOException{
-		NodeInfo node = new NodeInfo(sock);
+	private void initIncomingConnection(NodeInfo node, Message msg) throws IOException{
 		log.debug("Initializing incoming connection with node at " + node);
 		
 		// find out what id they are
-		
-		int theirId = 0;
-		try{
-			Message msg = receiveMessage(node);
-			node.connected = true;
-			
-			if(msg.getType() != MessageType.INIT){
-				log.warn("Received non INIT message from " + node);
-				node.connected = false;
-			}
-			theirId = msg.getId();
-			
-			if(theirId < 0 || theirId >= nodes.size()){
-				log.warn("Received out-of-bounds id from " + node);
-				node.connected = false;
+		int theirId = msg.getId();
+		boolean ok = true;
+		
+		if(msg.getType() != MessageType.INIT){
+			log.warn("Received non INIT message from " + node);
+			ok = false;
+		} else if(theirId < 0 || theirId >= nodes.size()){
+			log.warn("Received out-of-bounds id from " + node);
+			ok = false;
+		} else if(nodes.get(theirId).connected){
+			if(node.address.equals(nodes.get(theirId).address)){
+				log.info("Node " + theirId + " coming back online...");
+			} else {
+				log.warn("Received in-use id from " + node);
+				ok = false;
 			}
-			
-			if(nodes.get(theirId).connected){
-				if(node.address.equals(nodes.get(theirId).address)){
-					log.info("Node " + theirId + " coming back online...");
-				} else {
-					log.warn("Received in-use id from " + node);
-					node.connected = false;
-				}
-			}
-			
-		} catch(IllegalArgumentException e){
-			log.error("Could not decode message from " + node);
-			node.connected = false;
 		}
 		
-		nodes.set(theirId, node);
-		
-		if(!node.connected){
+		if(!ok){
 			Message nogood = new Message(MessageType.NACK, "reject", 0, id);
-			sendMessage(node, nogood);
-			sock.close();
+			node.channel.write(ByteBuffer.wrap(WireFormat.JSON.encodeFrame(nogood)));
+			node.close();
 			return;
 		}
 		
-		// if ok, add to list of nodes and send ack
-		Message ack_msg = new Message(MessageType.INIT, "ACK", 0, id); 
-		sendMessage(node, ack_msg);
+		// the INIT value names the format the peer would like to use
+		WireFormat format = WireFormat.JSON;
+		if(WireFormat.fromName(msg.getValue()) == PaxosConfig.WIRE_FORMAT)
+			format = PaxosConfig.WIRE_FORMAT;
+		
+		// if ok, send ack naming the agreed format, then add to list of nodes
+		Message ack_msg = new Message(MessageType.INIT, format.name(), 0, id);
+		node.send(ack_msg);
+		node.format = format;
+		node.handshaking = false;
+		node.theirId = theirId;
+		log.debug("Using " + format + " wire format with node " + theirId);
+		
+		replaceConnection(theirId, node);
 	}
 	
 	
 	/**
 	 * Connect to the other nodes. If "restart==false", this will attempt to
 	 * connect only to servers with id < this.serverID. If "restart==true", this will
-	 * attempt to connect to all other servers.  
+	 * attempt to connect to all other servers. All are dialed at once, and each is
+	 * dialed again until it connects.
 	 */
 	private void connectToOtherServers(boolean restart){
-		// create other initial connections
-		int iServer = -1;
-		
-		// if restarting, start by assuming that you must connect to all other servers
-		// this will be updated after connecting to one live server
-		// otherwise, on a fresh startup, connect to all servers with serverID less than yours 
-		int nConnections = restart ? (nodes.size()) : id+1;
-		
-		while(getConnectedNodeCount() < nConnections) {
-			iServer = (iServer+1) % (restart?nConnections:id);
-			NodeInfo node = nodes.get(iServer);
-			if (node.connected)
-				continue; // this socket and thread will be null
-
-			try {
-				log.debug("Entering connect loop for iServer = " + iServer);
-				Socket sock = new Socket();
-				try{
-					if(node.connectionAttempts>0)
-						Thread.sleep(WAIT_TIME);
-					sock.connect(new InetSocketAddress(node.address, ports.get(iServer)), TIMEOUT);
-					initOutgoingConnection(sock, iServer);
-				} catch (ConnectException | InterruptedException e) {
-					log.warn("NetworkNode connection failed to node "+iServer + ". So far " 
-							+ node.connectionAttempts + " attempts.");
-					node.connectionAttempts++;
-					continue;
+		int nConnections = restart ? nodes.size() : id;
+		for(int iServer=0; iServer<nConnections; iServer++){
+			if(iServer != id)
+				connect(iServer);
+		}
+	}
+	
+	
+	/**
+	 * Start a non-blocking connection to a node, unless it is connected or being dialed already.
+	 * The selector thread finishes the connection and the INIT handshake.
+	 */
+	private void connect(int iServer){
+		Peer peer = peers.get(iServer);
+		synchronized(peer){
+			if(peer.dialing || nodes.get(iServer).connected)
+				return;
+			peer.dialing = true;
+		}
+		log.debug("Connecting to node " + iServer);
+		
+		try {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			NodeInfo node = new NodeInfo(channel, iServer);
+			IoLoop loop = nextIoLoop();
+			node.loop = loop;
+			loop.execute(() -> {
+				try {
+					node.key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, node);
+					if(channel.connect(new InetSocketAddress(node.address, node.port)))
+						node.finishConnect();
+				} catch (IOException e) {
+					node.close();
 				}
-				
-			} catch (IOException e) {
-				e.printStackTrace();
+			});
+			
+			// give up on a connection that neither succeeds nor fails in time
+			delayTimer.schedule(() -> loop.execute(() -> {
+				if(node.dialing)
+					node.close();
+			}), TIMEOUT, TimeUnit.MILLISECONDS);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized(peer){
+				peer.dialing = false;
 			}
 		}
-		log.debug("Finished in ctor connection loop");
 	}
-
+	
 	
 	/**
-	 * Initialize a new incoming connection. 
+	 * Dial a node again after a random wait of up to twice the last one, capped at paxos.io.reconnectMaxMs
 	 */
-	private void initOutgoingConnection(Socket sock, int iServer) throws IOException{
-		NodeInfo node = new NodeInfo(sock);
-		log.debug("Initializing outgoing connection with node at " + node);
-		
-		// send init message identifying myself
-		Message msg = new Message(MessageType.INIT, "id", id, id);
-		sendMessage(node, msg);
-		
-		// listen for ack message
-		Message ack_msg = receiveMessage(node);
-		
-		nodes.set(ack_msg.getId(), node);
+	private void reconnect(int iServer){
+		Peer peer = peers.get(iServer);
+		long delay;
+		synchronized(peer){
+			if(nodes.get(iServer).connected)
+				return;
+			long backoff = Math.min(PaxosConfig.RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(peer.attempts, 20));
+			delay = backoff/2 + ThreadLocalRandom.current().nextLong(backoff/2 + 1);
+			if(peer.attempts%10 == 1)
+				log.warn("NetworkNode connection failed to node " + iServer + ". So far " + peer.attempts + " attempts.");
+			peer.attempts++;
+		}
+		delayTimer.schedule(() -> connect(iServer), delay, TimeUnit.MILLISECONDS);
 	}
-
-
+	
+	
+	/**
+	 * Initialize a new outgoing connection once the reply to our INIT message has arrived.
+	 * It names the format the peer agreed to.
+	 */
+	private void initOutgoingConnection(NodeInfo node, Message ack_msg) throws IOException{
+		if(ack_msg.getType() != MessageType.INIT || ack_msg.getId() != node.theirId){
+			log.warn("Connection rejected by node " + node.theirId);
+			node.close();
+			return;
+		}
+		node.format = WireFormat.fromName(ack_msg.getValue());
+		node.dialing = false;
+		node.connected = true;
+		log.debug("Using " + node.format + " wire format with node " + node.theirId);
+		
+		Peer peer = peers.get(node.theirId);
+		synchronized(peer){
+			peer.dialing = false;
+		}
+		replaceConnection(node.theirId, node);
+	}
+	
+	
+	// make node the connection to theirId. One it replaces, e.g. the other side's dial that
+	// crossed ours, is closed on its own selector thread, which moves its queued frames to the new one
+	private void replaceConnection(int theirId, NodeInfo node){
+		NodeInfo old = nodes.set(theirId, node);
+		if(old != node && old.channel != null)
+			old.loop.execute(old::close);
+		connected(theirId);
+	}
+	
+	
+	// a connection to iServer is in use; send what waited for it
+	private void connected(int iServer){
+		Peer peer = peers.get(iServer);
+		synchronized(peer){
+			peer.attempts = 0;
+		}
+		log.info("Connected to node " + iServer);
+		sendPending(iServer);
+	}
+	
+	
+	private void sendPending(int iServer){
+		Peer peer = peers.get(iServer);
+		NodeInfo node = nodes.get(iServer);
+		int sent = 0;
+		synchronized(peer){
+			Message msg;
+			while(node.connected && (msg = peer.pending.poll()) != null){
+				node.send(msg);
+				sent++;
+			}
+		}
+		if(sent > 0)
+			log.debug("Sent " + sent + " messages queued for node " + iServer);
+	}
+	
+	
 	public void clearnode(int otherID) {
 		log.debug("Clearing node " + otherID);
-		nodes.get(otherID).connected = false;
-		nodes.get(otherID).writer = null;
-		nodes.get(otherID).reader = null;
-		nodes.get(otherID).sock = null;
+		NodeInfo node = nodes.get(otherID);
+		node.connected = false;
+		if(node.channel != null)
+			node.close();
 	}
-
+	
 	public boolean isConnected(int inode) {
 		if(inode == id)
 			return true;
 		return nodes.get(inode).connected;
 	}
-
-}
 	
+	public void schedule(Runnable task, long delayMs) {
+		delayTimer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+	}
+	
+	public long nanoTime() {
+		return System.nanoTime();
+	}
 	
+}
+
+
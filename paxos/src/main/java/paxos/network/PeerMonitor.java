@@ -0,0 +1,92 @@
+package paxos.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import paxos.messages.Message;
+import paxos.messages.MessageType;
+
+/**
+ * Pings every connected peer each intervalMs and keeps a smoothed round trip time per peer,
+ * an EWMA of the samples and of their deviation as TCP does (RFC 6298).
+ * Uses the Transport's clock and timer, so under a SimulatedNetwork it runs on virtual time.
+ */
+public class PeerMonitor {
+	
+	private static final double ALPHA = 0.125;	// weight of a new sample in the smoothed rtt
+	private static final double BETA = 0.25;	// weight of a new sample in the deviation
+	
+	private Transport transport;
+	private int id;
+	private long intervalMs;
+	private double[] srtt;		// nanos, -1 before the first sample
+	private double[] rttvar;
+	
+	public PeerMonitor(Transport transport, long intervalMs) {
+		this.transport = transport;
+		this.id = transport.getId();
+		this.intervalMs = intervalMs;
+		int n = transport.getTotalNodeCount();
+		srtt = new double[n];
+		rttvar = new double[n];
+		Arrays.fill(srtt, -1);
+		srtt[id] = 0;
+		rttvar[id] = 0;
+	}
+	
+	public void start(){
+		transport.schedule(this::pingAll, intervalMs);
+	}
+	
+	private void pingAll(){
+		List<Integer> to = new ArrayList<>();
+		for(int i=0; i<srtt.length; i++){
+			if(i != id && transport.isConnected(i))
+				to.add(i);
+		}
+		transport.broadcast(to, new Message(MessageType.PING, Long.toString(transport.nanoTime()), 0, id));
+		transport.schedule(this::pingAll, intervalMs);
+	}
+	
+	
+	/**
+	 * Answer PINGs and record PONGs.
+	 * @return true if msg was a PING or PONG and needs no further handling
+	 */
+	public boolean handle(Message msg){
+		switch(msg.getType()){
+		case PING:
+			transport.sendMessage(msg.getId(), new Message(MessageType.PONG, msg.getValue(), 0, id));
+			return true;
+		case PONG:
+			record(msg.getId(), transport.nanoTime() - Long.parseLong(msg.getValue()));
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private synchronized void record(int peer, long sample){
+		if(srtt[peer] < 0){
+			srtt[peer] = sample;
+			rttvar[peer] = sample/2.0;
+		} else {
+			rttvar[peer] = (1-BETA)*rttvar[peer] + BETA*Math.abs(srtt[peer] - sample);
+			srtt[peer] = (1-ALPHA)*srtt[peer] + ALPHA*sample;
+		}
+	}
+	
+	// smoothed round trip time in nanos, or -1 if the peer has not answered a ping yet
+	public synchronized long rttNanos(int peer){
+		return (long)srtt[peer];
+	}
+	
+	// a round trip is very unlikely to take longer than this: srtt + 4*rttvar, or -1 if unknown
+	public synchronized long deadlineNanos(int peer){
+		if(srtt[peer] < 0)
+			return -1;
+		return (long)(srtt[peer] + 4*rttvar[peer]);
+	}
+	
+}
@@ -0,0 +1,328 @@
+package paxos.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import paxos.NodeFileParser;
+import paxos.messages.Message;
+
+/**
+ * Every node of a node list file in one JVM, connected through an in-memory network with a
+ * virtual clock. Each node gets a Transport from endpoint(id). Sent messages are queued with a
+ * delivery time drawn from the latency model, and may be dropped, reordered or cut off by a
+ * partition. Nothing is delivered, and no scheduled task runs, until the caller drives the
+ * clock with step(), runFor() or runUntil(). Messages and tasks are run one at a time, each once
+ * every idle check passes, so each node has finished reacting to the last one first. Only one
+ * thread then sends or schedules at a time, which keeps the random draws and the order of ties
+ * the same from run to run: with the same seed the same sends give the same run.
+ *
+ * The delay and unreliability columns of the node list file are honoured as in NetworkNode.
+ * Unreliability is applied as an extra drop rate for messages to that node.
+ */
+public class SimulatedNetwork {
+	
+	private static final int DELAY_TIME = 100;	// as NetworkNode
+	
+	private List<String[]> nodeListFileTokens;
+	private Endpoint[] endpoints;
+	private PriorityQueue<Delivery> pending = new PriorityQueue<>();
+	private List<BooleanSupplier> idleChecks = new ArrayList<>();
+	private long now = 0;
+	private long[][] lastDelivery;	// per link, to keep links FIFO unless a message is reordered
+	private int[] partition;		// nodes only reach nodes in the same group
+	private long delivered = 0;	// messages only
+	private long tasksRun = 0;
+	private long dropped = 0;
+	
+	private LatencyModel latency = LatencyModel.fixed(1);
+	private double dropRate = 0;
+	private double reorderRate = 0;
+	
+	public SimulatedNetwork(String nodeListFileName, long seed) {
+		nodeListFileTokens = NodeFileParser.parseNodeFile(nodeListFileName);
+		int n = nodeListFileTokens.size();
+		endpoints = new Endpoint[n];
+		for(int i=0; i<n; i++)
+			endpoints[i] = new Endpoint(i, new Random(seed*31 + i));
+		lastDelivery = new long[n][n];
+		partition = new int[n];
+	}
+	
+	public Transport endpoint(int id){
+		return endpoints[id];
+	}
+	
+	/**
+	 * Crash node id and give it a new endpoint, for a node restarted from its state file. Nothing
+	 * the old endpoint sends is delivered from now on and its pending tasks do not run. Messages
+	 * already on their way to it arrive at the new one.
+	 */
+	public synchronized Transport restart(int id){
+		Endpoint old = endpoints[id];
+		old.crashed = true;
+		endpoints[id] = new Endpoint(id, old.rand);
+		endpoints[id].seq = old.seq;
+		return endpoints[id];
+	}
+	
+	// e.g. paxnode::isIdle, checked before the clock moves
+	public void addIdleCheck(BooleanSupplier check){
+		idleChecks.add(check);
+	}
+	
+	public void setLatency(LatencyModel latency){
+		this.latency = latency;
+	}
+	
+	public void setDropRate(double dropRate){
+		this.dropRate = dropRate;
+	}
+	
+	// chance that a message ignores the FIFO order of its link
+	public void setReorderRate(double reorderRate){
+		this.reorderRate = reorderRate;
+	}
+	
+	// nodes in different groups cannot reach each other; unlisted nodes form one more group
+	public synchronized void partition(int[]... groups){
+		Arrays.fill(partition, 0);
+		for(int g=0; g<groups.length; g++){
+			for(int id : groups[g])
+				partition[id] = g+1;
+		}
+	}
+	
+	public synchronized void heal(){
+		Arrays.fill(partition, 0);
+	}
+	
+	public synchronized long now(){
+		return now;
+	}
+	
+	public synchronized long getDelivered(){
+		return delivered;
+	}
+	
+	public synchronized long getDropped(){
+		return dropped;
+	}
+	
+	public synchronized long getTasksRun(){
+		return tasksRun;
+	}
+	
+	
+//*************************************************8
+//	Virtual clock
+	
+	/**
+	 * Move the clock to the next delivery time and deliver the first message, or run the first
+	 * task, due then. Others due at the same time wait for the next step, after the nodes have
+	 * reacted to this one.
+	 * @return false if nothing is left to deliver
+	 */
+	public boolean step(){
+		awaitIdle();
+		Delivery d;
+		synchronized(this){
+			d = pending.poll();
+			if(d == null)
+				return false;
+			now = Math.max(now, d.time);
+			if(d.task != null)
+				tasksRun++;
+			else
+				delivered++;
+		}
+		if(d.task != null)
+			d.task.run();
+		else
+			endpoints[d.to].deliver(d.msg);
+		return true;
+	}
+	
+	// deliver everything due in the next millis of virtual time
+	public void runFor(long millis){
+		long deadline = now() + millis;
+		runUntil(() -> false, deadline);
+		synchronized(this){
+			now = Math.max(now, deadline);
+		}
+	}
+	
+	/**
+	 * Deliver messages until done is true, the network is quiet or the clock would pass deadline.
+	 * @return whether done became true
+	 */
+	public boolean runUntil(BooleanSupplier done, long deadline){
+		while(true){
+			awaitIdle();
+			if(done.getAsBoolean())
+				return true;
+			synchronized(this){
+				Delivery next = pending.peek();
+				if(next == null || next.time > deadline)
+					return false;
+			}
+			step();
+		}
+	}
+	
+	private void awaitIdle(){
+		for(BooleanSupplier check : idleChecks){
+			while(!check.getAsBoolean())
+				Thread.yield();
+		}
+	}
+	
+	
+	private synchronized void schedule(Endpoint from, Runnable task, long delayMs){
+		if(from.crashed)
+			return;
+		Delivery d = new Delivery(now + delayMs, from.id, from.seq++, from.id, null);
+		d.task = () -> {
+			if(!from.crashed)
+				task.run();
+		};
+		pending.add(d);
+	}
+	
+	private synchronized boolean isConnected(int from, int to){
+		return partition[from] == partition[to];
+	}
+	
+	
+	private synchronized void send(Endpoint from, int to, Message msg){
+		if(from.crashed)
+			return;
+		Random rand = from.rand;
+		
+		// messages to self are delivered right away and never lost
+		if(from.id == to){
+			pending.add(new Delivery(now, from.id, from.seq++, to, msg));
+			return;
+		}
+		
+		String[] toks = nodeListFileTokens.get(to);
+		double unreliability = Float.parseFloat(toks[NodeFileParser.UNRELIABILITY_COL]);
+		if(partition[from.id] != partition[to] || rand.nextDouble() < dropRate || rand.nextDouble() < unreliability){
+			dropped++;
+			return;
+		}
+		
+		long time = now + latency.sample(rand);
+		int avgMsgDelay = Integer.parseInt(toks[NodeFileParser.MSG_DELAY_COL]);
+		if(avgMsgDelay > 0)
+			time += (long)(rand.nextFloat()*DELAY_TIME*avgMsgDelay);
+		if(rand.nextDouble() >= reorderRate)
+			time = Math.max(time, lastDelivery[from.id][to]);
+		lastDelivery[from.id][to] = Math.max(lastDelivery[from.id][to], time);
+		
+		pending.add(new Delivery(time, from.id, from.seq++, to, msg));
+	}
+	
+	
+	// a message or a timer task, ordered by due time, ties broken by sender and send order so runs are repeatable
+	private static class Delivery implements Comparable<Delivery> {
+		long time;
+		int from;
+		long seq;
+		int to;
+		Message msg;
+		Runnable task;
+		
+		Delivery(long time, int from, long seq, int to, Message msg){
+			this.time = time;
+			this.from = from;
+			this.seq = seq;
+			this.to = to;
+			this.msg = msg;
+		}
+		
+		@Override
+		public int compareTo(Delivery o) {
+			if(time != o.time)
+				return Long.compare(time, o.time);
+			if(from != o.from)
+				return Integer.compare(from, o.from);
+			return Long.compare(seq, o.seq);
+		}
+	}
+	
+	
+	private class Endpoint implements Transport {
+		private int id;
+		private Random rand;	// per sender, so other nodes' timing does not change its draws
+		private long seq = 0;
+		private boolean running = false;
+		private volatile boolean crashed = false;	// replaced by restart()
+		private MessageHandler handler;
+		
+		Endpoint(int id, Random rand){
+			this.id = id;
+			this.rand = rand;
+		}
+		
+		void deliver(Message msg){
+			if(handler != null)
+				handler.onMessage(msg);
+		}
+		
+		@Override
+		public void run() {
+			running = true;
+		}
+		
+		@Override
+		public boolean isRunning() {
+			return running;
+		}
+		
+		@Override
+		public int getId() {
+			return id;
+		}
+		
+		@Override
+		public int getTotalNodeCount() {
+			return endpoints.length;
+		}
+		
+		@Override
+		public String[] getNodeFileTokens(int nodeId) {
+			return nodeListFileTokens.get(nodeId);
+		}
+		
+		@Override
+		public void setMessageHandler(MessageHandler handler) {
+			this.handler = handler;
+		}
+		
+		@Override
+		public boolean sendMessage(int theirId, Message msg) {
+			send(this, theirId, msg);
+			return true;
+		}
+		
+		@Override
+		public boolean isConnected(int nodeId) {
+			return SimulatedNetwork.this.isConnected(id, nodeId);
+		}
+		
+		@Override
+		public void schedule(Runnable task, long delayMs) {
+			SimulatedNetwork.this.schedule(this, task, delayMs);
+		}
+		
+		@Override
+		public long nanoTime() {
+			return now()*1000000;
+		}
+	}
+	
+}
@@ -0,0 +1,62 @@
+package paxos.network;
+
+import java.util.Collection;
+
+import paxos.messages.Message;
+import paxos.metrics.MetricsRegistry;
+
+/**
+ * How an app reaches the other nodes. NetworkNode connects to them over TCP,
+ * a SimulatedNetwork endpoint delivers to nodes in the same JVM.
+ */
+public interface Transport {
+	
+	void run();
+	
+	boolean isRunning();
+	
+	int getId();
+	
+	int getTotalNodeCount();
+	
+	String[] getNodeFileTokens(int nodeId);
+	
+	/**
+	 * Set the callback for incoming messages. Must be called before run().
+	 */
+	void setMessageHandler(MessageHandler handler);
+	
+	/**
+	 * Publish the transport's own metrics, e.g. traffic per peer, in metrics. Must be called before run().
+	 */
+	default void setMetrics(MetricsRegistry metrics){}
+	
+	boolean sendMessage(int theirId, Message msg);
+	
+	/**
+	 * Send the same message to several nodes. A transport may encode it only once.
+	 */
+	default void broadcast(Collection<Integer> ids, Message msg){
+		for(int id : ids)
+			sendMessage(id, msg);
+	}
+	
+	/**
+	 * Run sends as one batch. A transport may hold them back until sends returns and then
+	 * write those for one peer together.
+	 */
+	default void sendBatch(Runnable sends){
+		sends.run();
+	}
+	
+	boolean isConnected(int nodeId);
+	
+	/**
+	 * Run task once after delayMs, on a timer thread. A SimulatedNetwork runs it on its virtual clock.
+	 */
+	void schedule(Runnable task, long delayMs);
+	
+	// clock for timeouts and round trip times; virtual under a SimulatedNetwork
+	long nanoTime();
+	
+}
@@ -0,0 +1,9 @@
+package paxos.paxos;
+
+/**
+ * Told about every chosen value once it has been delivered to the app, in round order.
+ * Called on the PaxosNode protocol thread, so implementations must not block.
+ */
+public interface DecisionListener {
+	void onDecision(int round, String value);
+}
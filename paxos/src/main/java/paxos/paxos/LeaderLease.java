@@ -0,0 +1,188 @@
+package paxos.paxos;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Leader failure detection for one node, used only on the protocol thread. Times are transport
+ * nanos, so under a SimulatedNetwork they are virtual.
+ *
+ * As an acceptor the node grants a lease to the proposer it last promised, accepted from or
+ * acknowledged a heartbeat from. Until the lease runs out Phase 1 from any other proposer is
+ * refused. Separately it remembers which node it last heard leading, even from heartbeats it
+ * could not acknowledge, and only once that has been quiet for a lease may this node campaign,
+ * following a random backoff that doubles with every election it loses in a row. A dead leader
+ * is so replaced about one lease after its last heartbeat, and candidates rarely start Phase 1
+ * at the same time.
+ *
+ * As the leader it keeps the lease a Phase 2 quorum has granted it. That is measured from when
+ * the prepare or heartbeat was sent and shortened by MARGIN for clock drift, so before it runs
+ * out no other proposer can have collected a quorum of promises: every Phase 1 quorum shares an
+ * acceptor with a Phase 2 quorum. Promises alone are not enough, since with q1 below one half
+ * two Phase 1 quorums need not share one. Acknowledgements may answer any heartbeat of the
+ * current term, so the lease is still renewed when round trips take longer than the heartbeat
+ * interval.
+ */
+class LeaderLease {
+	
+	private static final double MARGIN = 0.9;
+	private static final int MAX_DOUBLINGS = 4;
+	
+	private int id;
+	private QuorumTracker quorum;
+	private long leaseNanos;
+	private long backoffNanos;
+	private Random rand;
+	
+	// acceptor side
+	private int grantedTo = -1;		// proposer we granted the lease to, -1 if none
+	private long grantedUntil;
+	private int leaderId = -1;		// node last heard leading
+	private long leaderUntil;
+	
+	// proposer side
+	private long campaignAt;		// earliest time we may start Phase 1 while no leader is heard
+	private int lost;				// elections lost in a row
+	private long prepareSent;
+	private long heldUntil;
+	private long[] ackedSent;		// per acceptor, send time of the latest heartbeat it acknowledged
+	private boolean[] acked;
+	private Integer[] byAck;		// acceptor ids, sorted latest acknowledgement first
+	
+	/**
+	 * @param rank position of this node among the distinguished proposers in id order, or -1
+	 */
+	LeaderLease(int id, QuorumTracker quorum, long now, int rank) {
+		this.id = id;
+		this.quorum = quorum;
+		leaseNanos = PaxosConfig.LEASE_MS*1000000;
+		backoffNanos = PaxosConfig.ELECTION_BACKOFF_MS*1000000;
+		rand = new Random(31L*id + now);
+		int n = quorum.size();
+		ackedSent = new long[n];
+		acked = new boolean[n];
+		byAck = new Integer[n];
+		for(int i=0; i<n; i++)
+			byAck[i] = i;
+		grantedUntil = now;
+		leaderUntil = now;
+		heldUntil = now;
+		
+		// distinguished proposers may campaign at once, one backoff apart so they do not duel.
+		// Everyone else first waits a lease for an existing leader's heartbeat
+		campaignAt = (rank >= 0) ? now + rank*backoffNanos : now + leaseNanos + backoff();
+	}
+	
+	
+//*************************************************8
+//	Acceptor side
+	
+	/**
+	 * Grant proposerId the lease for another LEASE_MS.
+	 * @return true if we last heard someone else leading
+	 */
+	boolean grant(int proposerId, long now){
+		grantedTo = proposerId;
+		grantedUntil = now + leaseNanos;
+		return heard(proposerId, now);
+	}
+	
+	/**
+	 * proposerId is leading, though we may not be able to grant it the lease.
+	 * @return true if we last heard someone else leading
+	 */
+	boolean heard(int proposerId, long now){
+		boolean changed = proposerId != leaderId;
+		leaderId = proposerId;
+		leaderUntil = now + leaseNanos;
+		campaignAt = leaderUntil + backoff();
+		return changed;
+	}
+	
+	// after a restart we may have granted a lease we no longer remember, so refuse everyone for one lease
+	void grantToNobody(long now){
+		grantedTo = -1;
+		grantedUntil = now + leaseNanos;
+		leaderId = -1;
+		leaderUntil = grantedUntil;
+		campaignAt = grantedUntil + backoff();
+	}
+	
+	boolean refuses(int proposerId, long now){
+		return proposerId != grantedTo && now - grantedUntil < 0;
+	}
+	
+	// node heard leading within the last lease, or -1
+	int liveLeader(long now){
+		return (now - leaderUntil < 0) ? leaderId : -1;
+	}
+	
+	
+//*************************************************8
+//	Proposer side
+	
+	boolean mayCampaign(long now){
+		return now - campaignAt >= 0;
+	}
+	
+	void campaigning(long now){
+		prepareSent = now;
+	}
+	
+	// Phase 1 has neither won nor been refused within a lease
+	boolean campaignTimedOut(long now){
+		return now - prepareSent > leaseNanos;
+	}
+	
+	// Phase 1 succeeded with promises of the given weight. If they are not a Phase 2 quorum
+	// as well, the lease only starts once enough acceptors have acknowledged a heartbeat
+	void won(long promisedWeight){
+		lost = 0;
+		if(quorum.isPhase2Quorum(promisedWeight))
+			heldUntil = prepareSent + (long)(MARGIN*leaseNanos);
+		Arrays.fill(acked, false);
+	}
+	
+	// refused, timed out or deposed: wait before campaigning again. Our own promise to ourselves
+	// no longer means we lead
+	void lost(long now){
+		lost++;
+		heldUntil = now;
+		if(leaderId == id)
+			leaderId = -1;
+		campaignAt = now + backoff();
+	}
+	
+	boolean holds(long now){
+		return now - heldUntil < 0;
+	}
+	
+	// an acceptor granted the lease in reply to the heartbeat sent at sentNanos. The lease then
+	// runs from the latest send time that a quorum has acknowledged a heartbeat at or after
+	void heartbeatAcked(int acceptorId, long sentNanos){
+		if(acked[acceptorId] && sentNanos - ackedSent[acceptorId] <= 0)
+			return;
+		acked[acceptorId] = true;
+		ackedSent[acceptorId] = sentNanos;
+		
+		Arrays.sort(byAck, (a, b) -> acked[a] == acked[b] ? Long.signum(ackedSent[b] - ackedSent[a]) : (acked[a] ? -1 : 1));
+		long sum = 0;
+		for(int a : byAck){
+			if(!acked[a])
+				return;
+			sum += quorum.weight(a);
+			if(quorum.isPhase2Quorum(sum)){
+				long from = ackedSent[a];
+				if(from + (long)(MARGIN*leaseNanos) - heldUntil > 0)
+					heldUntil = from + (long)(MARGIN*leaseNanos);
+				return;
+			}
+		}
+	}
+	
+	// random wait of up to ELECTION_BACKOFF_MS, doubled for every election lost in a row
+	private long backoff(){
+		return (long)(rand.nextDouble() * (backoffNanos << Math.min(lost, MAX_DOUBLINGS)));
+	}
+	
+}
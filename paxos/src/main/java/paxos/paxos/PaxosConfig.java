@@ -0,0 +1,84 @@
+package paxos.paxos;
+
+import paxos.messages.WireFormat;
+
+/**
+ * Tunable protocol settings. Each value can be overridden with a JVM system property,
+ * e.g. -Dpaxos.multiPaxos=false
+ */
+public class PaxosConfig {
+
+	// skip Phase 1 for consecutive rounds while our promise majority still holds
+	public static final boolean MULTI_PAXOS = Boolean.parseBoolean(System.getProperty("paxos.multiPaxos", "true"));
+
+	// maximum number of rounds a proposer may have in flight at once
+	public static final int WINDOW = Integer.getInteger("paxos.window", 8);
+
+	// client commands are proposed together once BATCH_SIZE are waiting or BATCH_DELAY_MS has passed
+	public static final int BATCH_SIZE = Integer.getInteger("paxos.batch.size", 1000);
+	public static final long BATCH_DELAY_MS = Long.getLong("paxos.batch.delayMs", 2);
+
+	// wire format proposed to peers in the INIT handshake; peers that do not agree fall back to JSON
+	public static final WireFormat WIRE_FORMAT = WireFormat.fromName(System.getProperty("paxos.wireFormat", "BINARY"));
+
+	// selector threads servicing all peer connections of one node
+	public static final int IO_THREADS = Integer.getInteger("paxos.io.threads", 2);
+
+	// messages kept for a peer while it is not connected; more are dropped
+	public static final int IO_QUEUE_SIZE = Integer.getInteger("paxos.io.queueSize", 1024);
+
+	// a lost or failed connection is dialed again after a random wait, doubled for every failure up to this
+	public static final long RECONNECT_MAX_MS = Long.getLong("paxos.io.reconnectMaxMs", 2000);
+
+	// largest message a peer may send; a connection carrying a larger or malformed frame is closed
+	public static final int MAX_FRAME_BYTES = Integer.getInteger("paxos.io.maxFrameBytes", 67108864);
+
+	// rounds applied between snapshots of the app state; older chosen values are then discarded
+	public static final int SNAPSHOT_INTERVAL = Integer.getInteger("paxos.snapshot.interval", 1000);
+
+	// a lagging node is sent the chosen values it missed in chunks of about this many bytes, or a snapshot
+	// of the app state, also in chunks, if they were discarded. A node sends such replies at no more than this rate in all
+	public static final int CATCHUP_CHUNK_BYTES = Integer.getInteger("paxos.catchup.chunkBytes", 65536);
+	public static final long CATCHUP_BYTES_PER_SEC = Long.getLong("paxos.catchup.bytesPerSec", 8388608);
+
+	// acceptors notify only the proposer of an accept rather than every distinguished learner,
+	// and the proposer alone announces the values it sees chosen
+	public static final boolean THRIFTY_NOTIFY = Boolean.parseBoolean(System.getProperty("paxos.thriftyNotify", "true"));
+
+	// flexible quorums: Phase 1 needs more than the fraction q1 of the total acceptor weight and
+	// Phase 2 more than q2. Checked at startup, q1 + q2 must be at least 1
+	public static final double PHASE1_QUORUM = Double.parseDouble(System.getProperty("paxos.quorum.phase1", "0.5"));
+	public static final double PHASE2_QUORUM = Double.parseDouble(System.getProperty("paxos.quorum.phase2", "0.5"));
+
+	// proposers ask the smallest quorum of acceptors first, and everyone once this long has passed without a quorum
+	public static final long FANOUT_TIMEOUT_MS = Long.getLong("paxos.fanout.timeoutMs", 100);
+
+	// every node pings the others this often to measure round trip times
+	public static final long PING_INTERVAL_MS = Long.getLong("paxos.ping.intervalMs", 100);
+
+	// once round trip times are known, the fan-out timeout is the slowest expected reply plus this,
+	// which leaves time for the acceptors' log sync
+	public static final long HEDGE_SLACK_MS = Long.getLong("paxos.hedge.slackMs", 5);
+
+	// the leader sends a heartbeat this often, and every node checks on its leader as often
+	public static final long HEARTBEAT_INTERVAL_MS = Long.getLong("paxos.leader.heartbeatMs", 50);
+
+	// a promise, accept or heartbeat grants its proposer a lease this long. Other proposers are
+	// refused until it runs out, and only then may another node campaign to replace the leader
+	public static final long LEASE_MS = Long.getLong("paxos.leader.leaseMs", 250);
+
+	// a node campaigns after a random wait of up to this long, doubled for every election it lost in a row
+	public static final long ELECTION_BACKOFF_MS = Long.getLong("paxos.election.backoffMs", 50);
+
+	// KVApp serves clients on its node's port plus this
+	public static final int KV_PORT_OFFSET = Integer.getInteger("paxos.kv.portOffset", 1);
+
+	// each node publishes its metrics over JMX, and writes them to <dir>/node_<id>.json this often; 0 turns the file off
+	public static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("paxos.metrics.jmx", "true"));
+	public static final String METRICS_DIR = System.getProperty("paxos.metrics.dir", "./metrics");
+	public static final long METRICS_DUMP_MS = Long.getLong("paxos.metrics.dumpMs", 10000);
+
+	// force the write-ahead log to disk on every sync. Only turn off for simulations and benchmarks
+	public static final boolean WAL_FSYNC = Boolean.parseBoolean(System.getProperty("paxos.wal.fsync", "true"));
+
+}
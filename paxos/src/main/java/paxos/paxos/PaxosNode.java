@@ -1,42 +1,173 @@
 package paxos.paxos;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.Logger;
 
 import paxos.NodeFileParser;
 import paxos.application.AbstractApp;
+import paxos.application.CommandBatcher;
 import paxos.messages.Message;
 import paxos.messages.MessageType;
+import paxos.metrics.Histogram;
+import paxos.metrics.Meter;
+import paxos.metrics.MetricsRegistry;
+import paxos.network.PeerMonitor;
 
+/**
+ * All protocol state is owned by one protocol thread. Network and app threads only queue
+ * events with processMessage() and propose(). Log syncs, sends and future completions
+ * produced by the events are handed to a persister thread, so the protocol thread keeps
+ * handling messages while the disk flush is in progress.
+ */
 public class PaxosNode{
-
+	
+	private static final long CATCHUP_TIMEOUT_NANOS = 1000000000L;	// a catch-up request unanswered for this long is sent again
+	private static final String NOOP = CommandBatcher.toString(Collections.emptyList());	// an empty batch, fills rounds a new leader finds no value for
+	// app snapshots are sent in chunks of this many chars, which fit a frame even at the 6 bytes a char may take escaped in JSON
+	private static final int SNAPSHOT_CHUNK_CHARS = Math.max(2, Math.min(PaxosConfig.CATCHUP_CHUNK_BYTES, (PaxosConfig.MAX_FRAME_BYTES - 64)/6));
+	
 	private AbstractApp app;
 	private int id;
 	private int Nprocs;
 	private Logger log;
-	private float[] acceptorWeights;
+	private double[] acceptorWeights;
+	private QuorumTracker quorum;
+	private List<Integer> acceptorOrder;	// heaviest first, the order used before round trip times are known
+	private List<Integer> allNodes;
 	private List<Integer> distinguishedLearners;
 	private boolean distinguishedProposer = false;
 	private PaxosState state;
+	private String stateFilename;
+	private WriteAheadLog wal;
+	private BlockingQueue<Runnable> events = new LinkedBlockingQueue<>();	// run in order by the protocol thread
+	private Thread protocolThread;
+	private ExecutorService persister;
+	private AtomicInteger pendingWork = new AtomicInteger();	// queued events and persister jobs not yet finished
+	private List<Outgoing> outbox = new ArrayList<>();	// sent once the log is synced
+	private List<DecisionListener> decisionListeners = new CopyOnWriteArrayList<>();
+	private Map<String, Deque<CompletableFuture<Integer>>> proposedFutures = new HashMap<>();	// by value, until chosen
+	private Map<Integer, CompletableFuture<Integer>> chosenFutures = new HashMap<>();	// by round, until delivered
+	private List<Runnable> completions = new ArrayList<>();	// run by the persister after the sends
+	private LeaderLease lease;
+	private int highestNumberSeen = -1;	// in NACKs, so a new proposal number can skip past it
+	private boolean[] promisedUs;	// acceptors that promised lastProposalNumber
+	private Deque<String> forwarded = new ArrayDeque<>();	// values handed to the leader, until chosen
+	private int forwardedTo = -1;
+	private long forwardedNanos;	// when the oldest of them was sent
+	private Set<Integer> slowRounds = new HashSet<>();	// rounds already in flight at the last tick
+	private int hedgeTarget = -1;	// acceptor outside the Phase 2 set that slow rounds were last resent to
+	private int nextReadId = 0;
+	private int highestChosenRound = -1;
+	private String lastDelivered;	// value of the last round handed to the app since we started
+	private int[] peerChosenRound;	// highest round each node is known to have decided
+	private int catchupFrom = -1;	// node asked by our last catch-up request
+	private int stalledRound = -1;	// first undelivered round at the last tick, if a later one was decided
+	private long catchupSentNanos;	// when our open catch-up request was sent
+	private boolean catchingUp = false;	// a catch-up request is open
+	private long catchupAllowedNanos;	// when the next catch-up reply may be sent without going over CATCHUP_BYTES_PER_SEC
+	private TreeMap<Integer, String> snapshotChunks = new TreeMap<>();	// by offset, of the snapshot being received
+	private int snapshotChunksUpTo = -1;	// and the round it is for
+	private int snapshotChunksFrom = -1;	// and the node sending it
+	private List<Proposal> commits = new ArrayList<>();	// decided since the last hand-off, as (round, proposal number) without the value
+	private Set<Integer> commitHolders = new HashSet<>();	// nodes that accepted one of them
+	private Proposal lastCommit;	// carried on heartbeats
+	private Map<Integer, Runnable> openReads = new HashMap<>();	// by read id, until the leader gives a read index
+	private Map<Integer, Long> readsSent = new HashMap<>();	// when each open read was last sent to a leader
+	private List<IntConsumer> unconfirmedReads = new ArrayList<>();	// as leader, until no other node can lead
+	private TreeMap<Integer, List<Runnable>> readsAwaitingDelivery = new TreeMap<>();	// by read index
+	
+	// metrics, see MetricsRegistry. Protocol latencies are on the transport's clock, local work on System.nanoTime()
+	private MetricsRegistry metrics;
+	private Histogram[] queueNanos = new Histogram[MessageType.values().length];	// waiting in the event queue, by message type
+	private Histogram[] handleNanos = new Histogram[MessageType.values().length];	// handling, by message type
+	private Histogram phase1Nanos;	// prepare request sent until leading
+	private Histogram phase2Nanos;	// first accept request for a round until we see it chosen
+	private Histogram commitNanos;	// proposed until delivered here
+	private Histogram stateWriteNanos;
+	private Histogram walSyncNanos;
+	private Meter rounds;	// delivered
+	private long prepareSentNanos;
+	private Map<Integer, Long> acceptSentNanos = new HashMap<>();	// by round, until chosen
 	
 	// Standard Ctor for initial startup
 	public PaxosNode(AbstractApp app, Logger log) {
+		configure(app, log);
+		
+		// create and write out state, and start an empty log
+		state = new PaxosState(id);
+		stateFilename = PaxosState.filename(id);
+		writeState();
+		wal = openLog(WriteAheadLog.filenameFor(stateFilename), false);
+	}
+	
+	
+	// restart ctor, for restarting with a state file
+	public PaxosNode(AbstractApp app, Logger log, String stateFilename){
+		configure(app, log);
+		
+		// repopulate state from the snapshot in statefile, then replay the log written since
+		log.info("\tStatefile = " + stateFilename);
+		this.stateFilename = stateFilename;
+		state = PaxosState.readFromFile(stateFilename);
+		if(state == null)
+			state = new PaxosState(id);
+		log.info("\tSnapshot at round " + state.snapshotRound);
+		wal = openLog(WriteAheadLog.filenameFor(stateFilename), true);
+		log.info("\tRecovered up to round " + state.currentRound);
+		
+		// promises may have moved on while we were down, so always re-run Phase 1, from the
+		// rounds the log says are still open
+		state.clearProposer();
+		lease.grantToNobody(app.nanoTime());
+	}
+	
+	
+	private WriteAheadLog openLog(String filename, boolean recover){
+		log.info("\tLog file = " + filename);
+		try {
+			return recover ? WriteAheadLog.recover(filename, state) : WriteAheadLog.create(filename);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open write-ahead log " + filename, e);
+		}
+	}
+	
+	
+	// settings shared by both ctors, from the app and the node list file
+	private void configure(AbstractApp app, Logger log) {
 		this.log = log;
 		this.app = app;
 		Nprocs = app.getTotalNodeCount();
 		
 		// Set weight here
 		// TODO: generalize for any input weight, specified in node list file
-		acceptorWeights = new float[Nprocs];
+		acceptorWeights = new double[Nprocs];
 		for(int i=0; i<Nprocs; i++)
-			acceptorWeights[i] = 1.0f/Nprocs;
+			acceptorWeights[i] = 1.0/Nprocs;
 		
 		this.id = app.getId();
-		state = new PaxosState(id);
 		
 		// parse nodeListFileTokens
 		distinguishedLearners = new ArrayList<>();
@@ -44,45 +175,158 @@ public class PaxosNode{
 			String[] toks = app.getNodeFileTokens(i);
 			if (toks[NodeFileParser.DL_COL].equals("1"))
 				distinguishedLearners.add(i);
-			acceptorWeights[i] = Float.parseFloat(toks[NodeFileParser.WEIGHT_COL]);
+			acceptorWeights[i] = Double.parseDouble(toks[NodeFileParser.WEIGHT_COL]);
 		}
+		try{
+			quorum = new QuorumTracker(acceptorWeights, PaxosConfig.PHASE1_QUORUM, PaxosConfig.PHASE2_QUORUM, 4*PaxosConfig.WINDOW);
+		} catch(IllegalArgumentException e){
+			log.error("Invalid quorum configuration: " + e.getMessage());
+			throw e;
+		}
+		for(int i=0; i<Nprocs; i++){
+			if(!quorum.isPhase1Quorum(quorum.totalWeight() - quorum.weight(i)) || !quorum.isPhase2Quorum(quorum.totalWeight() - quorum.weight(i)))
+				log.warn("Quorums need node " + i + ": without it no new leader can be elected or no value chosen");
+		}
+		promisedUs = new boolean[Nprocs];
+		peerChosenRound = new int[Nprocs];
+		Arrays.fill(peerChosenRound, -1);
+		allNodes = new ArrayList<>();
+		for(int i=0; i<Nprocs; i++)
+			allNodes.add(i);
+		
+		// equal weights are taken in id order starting after our own id, so proposers spread their load
+		acceptorOrder = new ArrayList<>();
+		for(int i=1; i<=Nprocs; i++)
+			acceptorOrder.add((id+i) % Nprocs);
+		acceptorOrder.sort((a, b) -> Long.compare(quorum.weight(b), quorum.weight(a)));
 		
 		if(app.getNodeFileTokens(id)[NodeFileParser.DP_COL].equals("1")){
 			distinguishedProposer = true;
 		}
 		
-		if(isDistinguishedLearner())
-			learnerInit();
+		// distinguished proposers campaign for leadership first, in id order
+		int rank = -1;
+		if(distinguishedProposer){
+			rank = 0;
+			for(int i=0; i<id; i++){
+				if(app.getNodeFileTokens(i)[NodeFileParser.DP_COL].equals("1"))
+					rank++;
+			}
+		}
+		lease = new LeaderLease(id, quorum, app.nanoTime(), rank);
+		
+		metrics = app.getMetrics();
+		phase1Nanos = metrics.histogram("paxos.phase1Nanos");
+		phase2Nanos = metrics.histogram("paxos.phase2Nanos");
+		commitNanos = metrics.histogram("paxos.commitNanos");
+		stateWriteNanos = metrics.histogram("paxos.stateWriteNanos");
+		walSyncNanos = metrics.histogram("paxos.walSyncNanos");
+		rounds = metrics.meter("paxos.rounds");
+		metrics.gauge("paxos.eventQueue", events::size);
+		metrics.gauge("paxos.nextDeliveryRound", () -> state.nextDeliveryRound);
+		
+		protocolThread = new Thread(this::eventLoop, "node" + id + "-paxos");
+		protocolThread.setDaemon(true);
+		persister = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "node" + id + "-persist");
+			t.setDaemon(true);
+			return t;
+		});
 		
 		log.info("Created new " + this.getClass().getSimpleName() + " with:");
 		log.info("\tid = " + id);
 		log.info("\tweight = " + acceptorWeights[id]);
 		log.info("\tDistinguished Proposer = " + distinguishedProposer);
 		log.info("\tDistinguished Learner = " + isDistinguishedLearner());
-		
-		// create and write out state
-		state.writeToFile();
-	}
-
-	
-	// restart ctor, for restarting with a state file
-	public PaxosNode(AbstractApp app, Logger log, String stateFilename){
-		this(app, log);
-		
-		// repopulate state from statefile
-		log.info("\tStatefile = " + stateFilename);
-		state = PaxosState.readFromFile(stateFilename);
+		log.info("\tWindow = " + PaxosConfig.WINDOW);
 	}
 	
 	
 	public void run(){
 		log.info("Starting run phase");
+		
+		// restore the app from the snapshot, then hand it the recovered decisions after it.
+		// Messages that arrived before now wait in the event queue until the thread starts
+		synchronized(this){
+			if(state.appSnapshot != null){
+				log.info("Installing app snapshot for rounds below " + state.snapshotRound);
+				app.installSnapshot(state.appSnapshot);
+				state.appSnapshot = null;
+			}
+			state.nextDeliveryRound = state.snapshotRound;
+			deliverChosenValues();
+			handOff();
+		}
+		protocolThread.start();
+		// tick at once, so the first distinguished proposer campaigns before the others' stagger ends
+		enqueue(this::tick);
 	}
-
 	
+	
+	// called from the network threads
 	public void processMessage(Message msg) {
-		log.debug("Processing message " + msg);
-		
+		long queued = System.nanoTime();
+		enqueue(() -> {
+			log.debug("Processing message {}", msg);
+			long start = System.nanoTime();
+			dispatch(msg);
+			int type = msg.getType().ordinal();
+			if(handleNanos[type] == null){
+				queueNanos[type] = metrics.histogram("paxos.msg." + msg.getType() + ".queueNanos");
+				handleNanos[type] = metrics.histogram("paxos.msg." + msg.getType() + ".handleNanos");
+			}
+			queueNanos[type].record(start - queued);
+			handleNanos[type].record(System.nanoTime() - start);
+		});
+	}
+	
+	
+	private void enqueue(Runnable event){
+		pendingWork.incrementAndGet();
+		events.add(event);
+	}
+	
+	
+	/**
+	 * True when no event is queued or running and every log sync and send has been done.
+	 * Used by the SimulatedNetwork to advance its clock only once the cluster is quiet.
+	 */
+	public boolean isIdle(){
+		return pendingWork.get() == 0;
+	}
+	
+	
+	// the protocol thread: run every queued event in order, then hand off the I/O they produced.
+	// The node lock is only held so the synchronized getters see a consistent state
+	private void eventLoop(){
+		List<Runnable> batch = new ArrayList<>();
+		while(true){
+			try {
+				batch.add(events.take());
+			} catch (InterruptedException e) {
+				log.warn("Protocol thread interrupted, stopping");
+				return;
+			}
+			events.drainTo(batch);
+			
+			synchronized(this){
+				for(Runnable event : batch){
+					try {
+						event.run();
+					} catch (RuntimeException e) {
+						log.error("Error handling event: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						e.printStackTrace();
+					}
+				}
+				handOff();
+			}
+			pendingWork.addAndGet(-batch.size());
+			batch.clear();
+		}
+	}
+	
+	
+	private void dispatch(Message msg){
 		switch(msg.getType()){
 		case ACCEPT_REQUEST:
 			receiveAcceptRequest(msg);
@@ -105,6 +349,34 @@ public class PaxosNode{
 		case CHOSEN_VALUE:
 			receiveChosenValue(msg);
 			break;
+		case HEARTBEAT:
+			receiveHeartbeat(msg);
+			break;
+		case HEARTBEAT_ACK:
+			receiveHeartbeatAck(msg);
+			break;
+		case FORWARD:
+			receiveForward(msg);
+			break;
+		case READ_INDEX:
+			receiveReadIndex(msg);
+			break;
+		case READ_INDEX_REPLY:
+			receiveReadIndexReply(msg);
+			break;
+		case CHOSEN_REQUEST:
+			receiveChosenRequest(msg);
+			break;
+		case COMMIT:
+			for(Proposal commit : msg.getProposals())
+				receiveCommit(commit, msg.getId());
+			break;
+		case CATCHUP:
+			receiveCatchup(msg);
+			break;
+		case SNAPSHOT:
+			receiveSnapshot(msg);
+			break;
 		default:
 			break;
 		}
@@ -114,169 +386,657 @@ public class PaxosNode{
 //*************************************************8
 //	Proposer methods	
 	
-	public void sendPrepareRequest(){
-		long t1 = System.currentTimeMillis();
+	// queue a value for the next free round. Up to WINDOW rounds may be in flight at once.
+	// In Multi-Paxos mode a proposer that still holds a promise majority for
+	// lastProposalNumber goes straight to Phase 2.
+	// The returned future completes with the round once the value is chosen and delivered to the app
+	public CompletableFuture<Integer> propose(String value){
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		long proposed = app.nanoTime();
+		future.thenRun(() -> commitNanos.record(app.nanoTime() - proposed));
+		enqueue(() -> {
+			log.debug("Queueing value " + value);
+			proposedFutures.computeIfAbsent(value, v -> new ArrayDeque<>()).add(future);
+			state.pendingValues.add(value);
+			fillWindow();
+		});
+		return future;
+	}
+	
+	/**
+	 * Run query once the app has applied every value chosen before this call, without a consensus
+	 * round. The leader answers from its lease, or after a quorum acknowledges a heartbeat, with
+	 * the index of the first round it has not assigned yet; other nodes ask the leader for that
+	 * index and wait until they have applied the rounds below it. The query runs on the protocol
+	 * thread between deliveries, so it sees the app's state without locking.
+	 * The future completes with the query's result.
+	 */
+	public <T> CompletableFuture<T> read(Supplier<T> query){
+		CompletableFuture<T> future = new CompletableFuture<>();
+		enqueue(() -> {
+			int readId = nextReadId++;
+			openReads.put(readId, () -> {
+				try {
+					T result = query.get();
+					completions.add(() -> future.complete(result));
+				} catch (RuntimeException e) {
+					completions.add(() -> future.completeExceptionally(e));
+				}
+			});
+			routeReads(app.nanoTime());
+		});
+		return future;
+	}
+	
+	public void addDecisionListener(DecisionListener listener){
+		decisionListeners.add(listener);
+	}
+	
+	public void removeDecisionListener(DecisionListener listener){
+		decisionListeners.remove(listener);
+	}
+	
+	
+	// assign pending values to rounds while there is room in the window. When we are not the
+	// leader, forward them to the node heard leading, or start Phase 1 if no one has been heard
+	// leading for a lease and our backoff has passed. Distinguished proposers take the lead
+	// like this even with nothing to propose, everyone else only once they have values waiting
+	private void fillWindow(){
+		if(!state.leader){
+			boolean waiting = !state.pendingValues.isEmpty() || !state.inFlight.isEmpty() || !forwarded.isEmpty();
+			if(state.preparing || !(waiting || distinguishedProposer))
+				return;
+			long now = app.nanoTime();
+			int leaderId = lease.liveLeader(now);
+			if(leaderId >= 0 && leaderId != id){
+				forwardTo(leaderId, now);
+			} else if(leaderId == id || (lease.mayCampaign(now) && quorumConnected())){
+				// no one else is leading, so propose what we forwarded ourselves
+				while(!forwarded.isEmpty())
+					state.pendingValues.addFirst(forwarded.pollLast());
+				sendPrepareRequest();
+			}
+			return;
+		}
+		
+		int window = PaxosConfig.MULTI_PAXOS ? PaxosConfig.WINDOW : 1;
+		while(state.inFlight.size() < window && !state.pendingValues.isEmpty()){
+			int round = Math.max(state.nextRound, state.currentRound);
+			while(isDecided(round))
+				round++;
+			state.nextRound = round+1;
+			String value = state.pendingValues.poll();
+			state.inFlight.put(round, value);
+			log.debug("Assigned value " + value + " to round " + round + ", " + state.inFlight.size() + " rounds in flight");
+			sendAcceptRequest(round, value);
+		}
+		
+	}
+	
+	
+	private void sendPrepareRequest(){
 		// reset propose response count
 		state.prepareResponseSum = 0;
 		state.nackSum = 0;
+		state.leader = false;
+		state.preparing = true;
+		state.receivedProposals.clear();
+		Arrays.fill(promisedUs, false);
+		lease.campaigning(app.nanoTime());
 		
-		// get new proposal number
-		state.lastProposalNumber = (state.lastProposalNumber == -1) ? id : state.lastProposalNumber+Nprocs;
+		// get new proposal number: our next one above every number we know of, so a
+		// proposer that was out-bid does not need several tries to catch up
+		int floor = Math.max(state.lastProposalNumber, Math.max(state.promiseNumber, highestNumberSeen));
+		int next = floor - Math.floorMod(floor, Nprocs) + id;
+		state.lastProposalNumber = (next > floor) ? next : next+Nprocs;
 		
-		// update state and write to file
-		log.debug("Updated lastProposalNumber: writing state to file");
-		state.writeToFile();
+		// log the number so it is never reused after a restart
+		log.debug("Updated lastProposalNumber: appending to log");
+		wal.logProposalNumber(state.lastProposalNumber);
 		
 		// get acceptor set
-		List<Integer> acceptorSet = getAcceptorSet();
+		List<Integer> acceptorSet = getAcceptorSet(quorum::isPhase1Quorum);
 		
 		// send proposal request to all acceptors in set
-		// include round number here
-		for(int acceptorId : acceptorSet){
-			Message msg = new Message(MessageType.PREPARE_REQUEST, ""+state.currentRound, state.lastProposalNumber, id);
-			app.sendMessage(acceptorId, msg);
-		}
+		// include the first round this proposal number should cover: every round from the first
+		// one not decided here, since the previous leader may have had any of them in flight
+		int round = state.currentRound;
+		int number = state.lastProposalNumber;
+		broadcast(acceptorSet, new Message(MessageType.PREPARE_REQUEST, ""+round, number, id));
+		prepareSentNanos = app.nanoTime();
+		app.schedule(() -> enqueue(() -> widenPrepareRequest(number, round, acceptorSet)), fanoutTimeoutMs(acceptorSet));
+	}
+	
+	
+	// Phase 1 has not reached a quorum in time: ask the acceptors left out of the set as well
+	private void widenPrepareRequest(int number, int round, List<Integer> asked){
+		if(!state.preparing || state.lastProposalNumber != number)
+			return;
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		log.debug("No promise quorum for proposal " + number + " yet, asking every acceptor");
+		broadcast(notAsked(asked), new Message(MessageType.PREPARE_REQUEST, ""+round, number, id));
+	}
+	
+	
+	private List<Integer> notAsked(List<Integer> asked){
+		List<Integer> others = new ArrayList<>(allNodes);
+		others.removeAll(asked);
+		return others;
+	}
+	
+	
+	// whether a campaign could succeed without waiting for connections
+	private boolean quorumConnected(){
+		long sum = 0;
+		for(int acceptorId=0; acceptorId<Nprocs; acceptorId++){
+			if(app.isConnected(acceptorId))
+				sum += quorum.weight(acceptorId);
+		}
+		return quorum.isPhase1Quorum(sum);
 	}
 	
 	
-	// start by assuming everyone is an acceptor, generate set
-	private List<Integer> getAcceptorSet() {
+	// fastest set of connected acceptors whose weight is a quorum. Acceptors are added in order
+	// of measured round trip time, which keeps the slowest reply the quorum waits for as short as
+	// possible; those not measured yet come last. Round trip times within HEDGE_SLACK_MS of each
+	// other count as equal and keep the heaviest-first order, so jitter on a fast network does not
+	// swap heavy acceptors for light ones. Members the quorum does not need are then dropped,
+	// lightest first, to save messages.
+	// If the connected acceptors cannot make a quorum, ask all of them
+	private List<Integer> getAcceptorSet(LongPredicate isQuorum) {
+		PeerMonitor monitor = app.getPeerMonitor();
+		List<Integer> candidates = new ArrayList<Integer>();
+		for(int acceptorId : acceptorOrder){
+			if(app.isConnected(acceptorId))
+				candidates.add(acceptorId);
+		}
+		long resolution = Math.max(1, PaxosConfig.HEDGE_SLACK_MS) * 1000000;
+		candidates.sort(Comparator.comparingLong(a -> {
+			long rtt = monitor.rttNanos(a);
+			return rtt < 0 ? Long.MAX_VALUE : rtt / resolution;
+		}));
+		
 		List<Integer> list = new ArrayList<Integer>();
-		for(int i=id+1; i<id+(Nprocs/2)+2; i++){
-			list.add(i%Nprocs);
+		long sum = 0;
+		for(int acceptorId : candidates){
+			list.add(acceptorId);
+			sum += quorum.weight(acceptorId);
+			if(isQuorum.test(sum))
+				break;
+		}
+		if(!isQuorum.test(sum)){
+			log.debug("Connected acceptors do not have a quorum of weight, asking every acceptor");
+			return new ArrayList<>(acceptorOrder);
+		}
+		
+		List<Integer> byWeight = new ArrayList<>(list);
+		byWeight.sort(Comparator.comparingLong(a -> quorum.weight(a)));
+		for(int acceptorId : byWeight){
+			long w = quorum.weight(acceptorId);
+			if(isQuorum.test(sum - w)){
+				list.remove((Integer)acceptorId);
+				sum -= w;
+			}
 		}
 		return list;
 	}
-
 	
-	public void sendAcceptRequest(){
-		long t1 = System.currentTimeMillis();
+	
+	// how long to wait for the acceptor set before asking everyone: the slowest expected round
+	// trip plus HEDGE_SLACK_MS, capped at FANOUT_TIMEOUT_MS, which is also used until every
+	// member's round trip time is known
+	private long fanoutTimeoutMs(List<Integer> acceptorSet){
+		PeerMonitor monitor = app.getPeerMonitor();
+		long deadline = 0;
+		for(int acceptorId : acceptorSet){
+			long d = monitor.deadlineNanos(acceptorId);
+			if(d < 0)
+				return PaxosConfig.FANOUT_TIMEOUT_MS;
+			deadline = Math.max(deadline, d);
+		}
+		return Math.min(PaxosConfig.FANOUT_TIMEOUT_MS, deadline/1000000 + 1 + PaxosConfig.HEDGE_SLACK_MS);
+	}
+	
+	
+	private void sendAcceptRequest(int round, String value){
 		state.nackSum = 0;
 		state.prepareResponseSum = 0;
-		state.writeToFile();
 		
-		//TODO: send the accept request
-		
-		// check if received proposal is null
-		// include round number here
-		Proposal prop = new Proposal(state.lastProposalNumber, state.myValue, state.currentRound);
-		if(state.receivedProposal != null){
-			prop.value = state.receivedProposal.value;
-		}
+		Proposal prop = new Proposal(state.lastProposalNumber, value, round);
+		acceptSentNanos.putIfAbsent(round, app.nanoTime());
 		
 		// send proposal with value to acceptors
-		List<Integer> acceptorSet = getAcceptorSet();
+		List<Integer> acceptorSet = getAcceptorSet(quorum::isPhase2Quorum);
 		
 		// send proposal request to all acceptors in set
-		for(int acceptorId : acceptorSet){
-			Message msg = new Message(MessageType.ACCEPT_REQUEST, prop.toString(), state.lastProposalNumber, id);
-			app.sendMessage(acceptorId, msg);
+		broadcast(acceptorSet, new Message(MessageType.ACCEPT_REQUEST, null, state.lastProposalNumber, id, Collections.singletonList(prop)));
+		app.schedule(() -> enqueue(() -> widenAcceptRequest(prop, acceptorSet)), fanoutTimeoutMs(acceptorSet));
+	}
+	
+	
+	// the round is still open after the fan-out timeout: send the proposal to the remaining acceptors
+	private void widenAcceptRequest(Proposal prop, List<Integer> asked){
+		if(!state.leader || state.lastProposalNumber != prop.number || isDecided(prop.round)
+				|| !prop.value.equals(state.inFlight.get(prop.round)))
+			return;
+		
+		log.debug("Round " + prop.round + " not chosen yet, sending proposal " + prop.number + " to every acceptor");
+		broadcast(notAsked(asked), new Message(MessageType.ACCEPT_REQUEST, null, prop.number, id, Collections.singletonList(prop)));
+	}
+	
+	
+	// Phase 1 succeeded: re-propose every open round, adopting any value an acceptor
+	// reported. Rounds below nextRound that nobody reported a value for get a no-op, so a
+	// round the previous leader left open cannot hold up delivery. Then continue filling
+	// the window with our own values
+	private void becomeLeader(){
+		phase1Nanos.record(app.nanoTime() - prepareSentNanos);
+		state.leader = true;
+		state.preparing = false;
+		lease.won(state.prepareResponseSum);
+		if(state.promiseNumber <= state.lastProposalNumber)
+			lease.grant(id, app.nanoTime());
+		log.info("Leading with proposal " + state.lastProposalNumber);
+		routeReads(app.nanoTime());
+		
+		for(Proposal prop : state.receivedProposals.values()){
+			if(prop.round < state.currentRound || isDecided(prop.round))
+				continue;
+			String ours = state.inFlight.get(prop.round);
+			if(ours != null && !ours.equals(prop.value)){
+				log.debug("Round " + prop.round + " already has value " + prop.value + ", requeueing " + ours);
+				requeue(ours);
+			}
+			state.inFlight.put(prop.round, prop.value);
+			state.nextRound = Math.max(state.nextRound, prop.round+1);
 		}
+		state.receivedProposals.clear();
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		for(int round=state.currentRound; round<state.nextRound; round++){
+			if(!isDecided(round) && !state.inFlight.containsKey(round)){
+				log.debug("No value reported for round " + round + ", proposing a no-op");
+				state.inFlight.put(round, NOOP);
+			}
+		}
+		
+		// rounds decided while we were not leading are no longer ours to propose
+		state.inFlight.keySet().removeIf(this::isDecided);
+		for(Map.Entry<Integer,String> entry : state.inFlight.entrySet()){
+			sendAcceptRequest(entry.getKey(), entry.getValue());
+		}
+		fillWindow();
 	}
 	
 	
-	public synchronized void receivePrepareResponse(Message msg){
-		long t1 = System.currentTimeMillis();
+	// put a value back at the front of the queue, unless it is a no-op that filled a gap
+	private void requeue(String value){
+		if(!value.equals(NOOP))
+			state.pendingValues.addFirst(value);
+	}
+	
+	
+	// keep the highest numbered proposal reported for each round
+	private void recordReceivedProposals(List<Proposal> proposals){
+		for(Proposal prop : proposals){
+			Proposal current = state.receivedProposals.get(prop.round);
+			if( current==null || current.number < prop.number ){
+				log.debug("Received more recent proposal for round " + prop.round + ", updating values...");
+				state.receivedProposals.put(prop.round, prop);
+			} else {
+				log.debug("Received outdated proposal for round " + prop.round + ", not updating values...");
+			}
+		}
+	}
+	
+	
+	private void receivePrepareResponse(Message msg){
 		log.debug("Received PREPARE_RESPONSE from " + msg.getId());
 		
 		// contents of PREPARE_RESPONSE (the promise)
 		// msg.number == YOUR request number
-		// msg.value == JSON-ified Proposal
+		// msg.proposals == accepted Proposals for the covered rounds
 		
 		// if outdated response, ignore
 		if(msg.getNumber() != state.lastProposalNumber){
 			log.debug("Outdated response, ignoring");
 			return;
 		}
-
-		Proposal responseProposal = Proposal.fromString(msg.getValue());
-
-		if(responseProposal==null){
-			log.debug("Received promise from " + msg.getId());
-		} else {
-			if( state.receivedProposal==null || state.receivedProposal.number < responseProposal.number ){
-				log.debug("Received promise with more recent proposal, updating values...");
-				state.receivedProposal = responseProposal;
-			} else {
-				log.debug("Received promise with outdated proposal, not updating values...");
-			}
+		
+		// late promises after the majority must not trigger a second accept request
+		if(state.leader){
+			log.debug("Received promise from " + msg.getId() + ", already holding a majority");
+			return;
 		}
 		
-		// update response sum. 
-		state.prepareResponseSum += acceptorWeights[msg.getId()];
+		log.debug("Received promise from " + msg.getId());
+		recordReceivedProposals(msg.getProposals());
+		promisedUs[msg.getId()] = true;
 		
-		// update state and write to file
-		log.debug("Updated prepareResponseSum and receivedProposal: writing state to file");
-		state.writeToFile();
+		// update response sum. 
+		state.prepareResponseSum += quorum.weight(msg.getId());
 		
-		// If a majority (>0.5) is obtained, send accept request
-		if(state.prepareResponseSum > 0.5){
-			log.debug("Prepare response sum = " + state.prepareResponseSum + ", sending accept request");
-			sendAcceptRequest();
+		// If a Phase 1 quorum of the total weight is obtained, send accept requests
+		if(quorum.isPhase1Quorum(state.prepareResponseSum)){
+			log.debug("Prepare response sum = " + state.prepareResponseSum + "/" + quorum.totalWeight() + ", sending accept requests");
+			becomeLeader();
 		} else {
-			log.debug("Prepare response sum = " + state.prepareResponseSum);
+			log.debug("Prepare response sum = " + state.prepareResponseSum + "/" + quorum.totalWeight());
 		}
-		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
-		
 	}	
 	
 	// response when you are told "computer says no", proposal number is too low
 	// NACKs contain the newer proposal information that must be recorded
-	public synchronized void receiveNack(Message msg){
-		long t1 = System.currentTimeMillis();
+	private void receiveNack(Message msg){
 		log.debug("Received NACK");
-		Proposal responseProposal = Proposal.fromString(msg.getValue());
-		if(responseProposal != null){
-			if( state.receivedProposal==null || state.receivedProposal.number < responseProposal.number ){
-				log.debug("Received NACK with more recent proposal, updating values...");
-				state.receivedProposal = responseProposal;
-			} else {
-				log.debug("Received NACK with outdated proposal, not updating values...");
-			}
+		recordReceivedProposals(msg.getProposals());
+		int promised = Integer.parseInt(msg.getValue());
+		highestNumberSeen = Math.max(highestNumberSeen, promised);
+		
+		// a late NACK for a proposal we have already replaced
+		if(msg.getNumber() != state.lastProposalNumber){
+			log.debug("NACK for old proposal " + msg.getNumber() + ", ignoring");
+			return;
+		}
+		// a lease refusal of our prepare request from an acceptor outside the quorum that made us leader
+		if(state.leader && !promisedUs[msg.getId()] && promised < state.lastProposalNumber){
+			log.debug("NACK from node " + msg.getId() + ", which did not promise us, ignoring");
+			return;
 		}
-
-		// tally NACKs. If >0.5, start a new prepare request
-		state.nackSum += acceptorWeights[msg.getId()];
 		
-		// update state and write to file
-		log.debug("Updated nackSum: writing state to file");
-		state.writeToFile();
+		// a NACK means someone has promised a higher number or holds the leader lease,
+		// so our Phase 1 no longer holds
+		state.leader = false;
 		
-		if(state.nackSum > 0.5){
-			log.debug("NACK sum = " + state.nackSum + ", starting new prepare request");
-			sendPrepareRequest();
-		}
+		// tally NACKs. Once the acceptors left can no longer make a Phase 1 quorum, back off before
+		// campaigning again, rather than out-bidding the other proposer at once and duelling with it
+		state.nackSum += quorum.weight(msg.getId());
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		if(!quorum.isPhase1Quorum(quorum.totalWeight() - state.nackSum)){
+			log.debug("NACK sum = " + state.nackSum + "/" + quorum.totalWeight() + ", backing off");
+			state.nackSum = 0;
+			state.preparing = false;
+			lease.lost(app.nanoTime());
+			fillWindow();
+		}
 	}
 	
 	
 	// if found that our round is out of date, 
-	public synchronized void receiveNackOldRound(Message msg){
-		long t1 = System.currentTimeMillis();
+	private void receiveNackOldRound(Message msg){
 		log.debug("Received NACK_OLDROUND");
 		int theirRound = Integer.parseInt(msg.getValue());
 		
-		if( state.currentRound < theirRound ){
-			log.debug("Updating currentRound");
-			state.currentRound = theirRound;
-			state.writeToFile();
-			sendPrepareRequest();
+		// fetch the rounds we are missing from the node that has them. Phase 1 covers every
+		// round from our currentRound, so it cannot succeed before we have caught up
+		heardChosen(msg.getId(), theirRound-1);
+		long now = app.nanoTime();
+		if(state.nextDeliveryRound < theirRound && (!catchingUp || now - catchupSentNanos > CATCHUP_TIMEOUT_NANOS))
+			requestCatchup(msg.getId(), now);
+		
+		if( state.nextRound < theirRound ){
+			log.debug("Updating nextRound");
+			state.nextRound = theirRound;
+			
+			// rounds below theirRound were decided without us, so propose our values again
+			List<Integer> staleRounds = new ArrayList<>(state.inFlight.keySet());
+			Collections.sort(staleRounds, Collections.reverseOrder());
+			for(int round : staleRounds){
+				if(round < theirRound)
+					requeue(state.inFlight.remove(round));
+			}
+			
+			// Phase 1 again from the new round, if the leader lease allows us
+			state.leader = false;
+			state.preparing = false;
+			fillWindow();
 		} else {
 			log.debug("Received old round " + theirRound);
 		}
+	}
+	
+	
+	
+	
+//*************************************************8
+//	Leader election	
+	
+	private void scheduleTick(){
+		app.schedule(() -> enqueue(this::tick), PaxosConfig.HEARTBEAT_INTERVAL_MS);
+	}
+	
+	// every HEARTBEAT_INTERVAL_MS: the leader renews its lease. It keeps proposing if the lease
+	// runs out, since only a higher proposal number can make its accept requests fail. A campaign
+	// nobody answered backs off, and values still waiting for a leader are forwarded or proposed
+	private void tick(){
+		long now = app.nanoTime();
+		if(state.leader){
+			sendHeartbeat(now);
+			resendSlowRounds();
+		} else if(state.preparing && lease.campaignTimedOut(now)){
+			log.debug("No quorum answered prepare request " + state.lastProposalNumber + ", backing off");
+			state.preparing = false;
+			lease.lost(now);
+		}
+		// reads we could not confirm before stepping down are asked again from the new leader
+		if(!state.leader)
+			unconfirmedReads.clear();
+		fetchMissingRounds(now);
+		routeReads(now);
+		fillWindow();
+		scheduleTick();
+	}
+	
+	
+	private void sendHeartbeat(long now){
+		List<Integer> to = new ArrayList<>();
+		for(int i=0; i<Nprocs; i++){
+			if(i == id || app.isConnected(i))
+				to.add(i);
+		}
+		List<Proposal> commit = (lastCommit == null) ? null : Collections.singletonList(lastCommit);
+		broadcast(to, new Message(MessageType.HEARTBEAT, Long.toString(now), state.lastProposalNumber, id, commit));
+	}
+	
+	
+	// grant the leader another lease, unless we have promised a higher number since.
+	// Either way the leader is alive, so we forward our values to it rather than campaign
+	private void receiveHeartbeat(Message msg){
+		long now = app.nanoTime();
+		if(state.leader && msg.getNumber() > state.lastProposalNumber){
+			log.info("Node " + msg.getId() + " leads with a higher proposal number, stepping down");
+			state.leader = false;
+			lease.lost(now);
+		}
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		boolean changed;
+		if(msg.getNumber() < state.promiseNumber){
+			log.debug("Not granting a lease to node " + msg.getId() + " for proposal " + msg.getNumber() + ", promised " + state.promiseNumber);
+			changed = lease.heard(msg.getId(), now);
+		} else {
+			changed = lease.grant(msg.getId(), now);
+			send(msg.getId(), new Message(MessageType.HEARTBEAT_ACK, msg.getValue(), msg.getNumber(), id));
+		}
+		
+		if(changed){
+			log.info("Following leader " + msg.getId());
+			routeReads(now);
+			fillWindow();
+		}
+		
+		// the latest decision, in case we missed its COMMIT
+		for(Proposal commit : msg.getProposals())
+			receiveCommit(commit, msg.getId());
+	}
+	
+	
+	private void receiveHeartbeatAck(Message msg){
+		if(state.leader && msg.getNumber() == state.lastProposalNumber){
+			lease.heartbeatAcked(msg.getId(), Long.parseLong(msg.getValue()));
+			confirmReads(app.nanoTime());
+		}
+	}
+	
+	
+	// accept requests still open a whole heartbeat interval later were probably lost, along with
+	// the widened ones: send them again to the current Phase 2 set and one acceptor outside it.
+	// That acceptor changes every tick, so a round stuck on a set member that went quiet still
+	// reaches every acceptor in time
+	private void resendSlowRounds(){
+		List<Integer> acceptorSet = null;
+		for(Map.Entry<Integer,String> entry : state.inFlight.entrySet()){
+			if(!slowRounds.contains(entry.getKey()))
+				continue;
+			if(acceptorSet == null)
+				acceptorSet = hedge(getAcceptorSet(quorum::isPhase2Quorum));
+			Proposal prop = new Proposal(state.lastProposalNumber, entry.getValue(), entry.getKey());
+			log.debug("Round " + prop.round + " still not chosen, sending proposal " + prop.number + " to " + acceptorSet + " again");
+			broadcast(acceptorSet, new Message(MessageType.ACCEPT_REQUEST, null, prop.number, id, Collections.singletonList(prop)));
+		}
+		slowRounds.clear();
+		slowRounds.addAll(state.inFlight.keySet());
+	}
+	
+	
+	// acceptorSet with the next connected acceptor outside it after the one added last time
+	private List<Integer> hedge(List<Integer> acceptorSet){
+		for(int i=1; i<=Nprocs; i++){
+			int acceptorId = Math.floorMod(hedgeTarget + i, Nprocs);
+			if(!acceptorSet.contains(acceptorId) && app.isConnected(acceptorId)){
+				hedgeTarget = acceptorId;
+				acceptorSet.add(acceptorId);
+				break;
+			}
+		}
+		return acceptorSet;
+	}
+	
+	
+	// another node holds the leader lease: hand it our values rather than compete for Phase 1.
+	// They are kept until chosen and sent again if the leader changes or a lease passes without
+	// a decision, so a value is never lost, though it may rarely be chosen twice
+	private void forwardTo(int leaderId, long now){
+		if(!forwarded.isEmpty() && (leaderId != forwardedTo || now - forwardedNanos > PaxosConfig.LEASE_MS*1000000)){
+			log.debug("Forwarding " + forwarded.size() + " values to node " + leaderId + " again");
+			while(!forwarded.isEmpty())
+				state.pendingValues.addFirst(forwarded.pollLast());
+		}
+		
+		// rounds we proposed before losing the leadership are the leader's to fill now
+		List<Integer> rounds = new ArrayList<>(state.inFlight.keySet());
+		Collections.sort(rounds, Collections.reverseOrder());
+		for(int round : rounds)
+			state.pendingValues.addFirst(state.inFlight.remove(round));
+		
+		if(state.pendingValues.isEmpty())
+			return;
+		if(forwarded.isEmpty())
+			forwardedNanos = now;
+		forwardedTo = leaderId;
+		log.debug("Forwarding " + state.pendingValues.size() + " values to leader " + leaderId);
+		while(!state.pendingValues.isEmpty()){
+			String value = state.pendingValues.poll();
+			send(leaderId, new Message(MessageType.FORWARD, value, 0, id));
+			forwarded.add(value);
+		}
+	}
+	
+	
+	// a follower's value, to be proposed like our own. It is dropped if we are not leading or
+	// campaigning, rather than passed on, so two nodes that each think the other leads cannot
+	// bounce it between them; the follower sends it again once it sees who leads
+	private void receiveForward(Message msg){
+		String value = msg.getValue();
+		if(!state.leader && !state.preparing && lease.liveLeader(app.nanoTime()) != id){
+			log.debug("Not leading, dropping value " + value + " forwarded by node " + msg.getId());
+			return;
+		}
+		if(state.pendingValues.contains(value) || state.inFlight.containsValue(value)){
+			log.debug("Already proposing value " + value + " forwarded by node " + msg.getId());
+			return;
+		}
+		log.debug("Queueing value " + value + " forwarded by node " + msg.getId());
+		state.pendingValues.add(value);
+		fillWindow();
+	}
+	
+	
+	
+	
+//*************************************************8
+//	Reads	
+	
+	// get a read index for every open read not asked for yet, or asked for a lease ago
+	// without an answer. Reads wait while no leader is known
+	private void routeReads(long now){
+		int leaderId = state.leader ? id : lease.liveLeader(now);
+		if(openReads.isEmpty() || leaderId < 0 || (leaderId == id && !state.leader))
+			return;
+		
+		for(int readId : new ArrayList<>(openReads.keySet())){
+			Long sent = readsSent.get(readId);
+			if(sent != null && now - sent <= PaxosConfig.LEASE_MS*1000000)
+				continue;
+			readsSent.put(readId, now);
+			if(leaderId == id)
+				confirmRead(index -> answerRead(readId, index));
+			else
+				send(leaderId, new Message(MessageType.READ_INDEX, null, readId, id));
+		}
+	}
+	
+	
+	// as leader, give reply the read index once no other node can be leading. With the lease
+	// that is at once, otherwise once a quorum acknowledges a heartbeat sent after the read
+	private void confirmRead(IntConsumer reply){
+		unconfirmedReads.add(reply);
+		long now = app.nanoTime();
+		if(lease.holds(now))
+			confirmReads(now);
+		else if(unconfirmedReads.size() == 1)
+			sendHeartbeat(now);
+	}
+	
+	
+	// every value chosen so far is in a round we have assigned, or learned of in Phase 1,
+	// so reads wait for the rounds in flight as well as those already decided
+	private void confirmReads(long now){
+		if(!state.leader || unconfirmedReads.isEmpty() || !lease.holds(now))
+			return;
+		int index = Math.max(state.nextRound, state.currentRound);
+		log.debug("Confirmed " + unconfirmedReads.size() + " reads at index " + index);
+		for(IntConsumer reply : unconfirmedReads)
+			reply.accept(index);
+		unconfirmedReads.clear();
+	}
+	
+	
+	// a read is answered once, later replies to a resent request are ignored
+	private void answerRead(int readId, int index){
+		Runnable query = openReads.remove(readId);
+		readsSent.remove(readId);
+		if(query == null)
+			return;
+		if(state.nextDeliveryRound >= index)
+			query.run();
+		else
+			readsAwaitingDelivery.computeIfAbsent(index, i -> new ArrayList<>()).add(query);
+	}
+	
+	
+	// a follower's read. If we are not leading it is dropped, and the follower asks again
+	private void receiveReadIndex(Message msg){
+		if(!state.leader){
+			log.debug("Not leading, dropping read " + msg.getNumber() + " from node " + msg.getId());
+			return;
+		}
+		int from = msg.getId();
+		int readId = msg.getNumber();
+		confirmRead(index -> send(from, new Message(MessageType.READ_INDEX_REPLY, ""+index, readId, id)));
+	}
+	
+	
+	private void receiveReadIndexReply(Message msg){
+		answerRead(msg.getNumber(), Integer.parseInt(msg.getValue()));
 	}
 	
 	
@@ -285,220 +1045,604 @@ public class PaxosNode{
 //*************************************************8
 //	Acceptor methods	
 	
-	public synchronized void receivePrepareRequest(Message msg){
-		long t1 = System.currentTimeMillis();
+	// every proposal we have accepted for the given round or later
+	private List<Proposal> acceptedProposalsFrom(int round){
+		List<Proposal> props = new ArrayList<>();
+		for(Proposal prop : state.acceptedProposals.values()){
+			if(prop.round >= round)
+				props.add(prop);
+		}
+		return props;
+	}
+	
+	private void receivePrepareRequest(Message msg){
 		int n = msg.getNumber();
 		
 		// check round number of incoming request
 		int round = Integer.parseInt(msg.getValue());
-		String propString = (state.acceptedProposal == null) ? "" : state.acceptedProposal.toString();
+		long now = app.nanoTime();
 		
 		if( round < state.currentRound ){
 			log.debug("Received PREPARE for round " + round + " but I am expecting at least round " + state.currentRound);
 			Message nackMsg = new Message(MessageType.NACK_OLDROUND, ""+(state.currentRound), n, id);
 			sendNack(nackMsg, msg.getId());
+		// another proposer holds the leader lease
+		} else if(lease.refuses(msg.getId(), now)){
+			log.debug("Refusing PREPARE from node " + msg.getId() + ", another node holds the leader lease");
+			Message nackMsg = new Message(MessageType.NACK, ""+state.promiseNumber, n, id);
+			sendNack(nackMsg, msg.getId());
 		// if promising
 		} else if(n>state.promiseNumber){
 			state.promiseNumber = n;
+			lease.grant(msg.getId(), now);
 			
-			// update state and write to file
-			log.debug("Updared promiseNumber: writing state to file");
-			state.writeToFile();
+			// promising a higher number than our own ends our leadership
+			if(n > state.lastProposalNumber)
+				state.leader = false;
 			
-			Message promiseMsg = new Message(MessageType.PREPARE_RESPONSE, propString, n, id);
+			// log the promise before it is sent
+			log.debug("Updated promiseNumber: appending to log");
+			wal.logPromise(n);
+			
+			Message promiseMsg = new Message(MessageType.PREPARE_RESPONSE, null, n, id, acceptedProposalsFrom(round));
 			sendPrepareResponse(promiseMsg, msg.getId());
 		} else {
-			Message nackMsg = new Message(MessageType.NACK, propString, n, id);
+			// NACKs carry the refused number and the one we promised, which the proposer out-bids next time
+			Message nackMsg = new Message(MessageType.NACK, ""+state.promiseNumber, n, id, acceptedProposalsFrom(round));
 			sendNack(nackMsg, msg.getId());
 		}
-		
-		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
 	}
 	
-	public synchronized void receiveAcceptRequest(Message msg){
-		long t1 = System.currentTimeMillis();
-		
+	private void receiveAcceptRequest(Message msg){
 		// parse message
-		Proposal prop = Proposal.fromString(msg.getValue());
+		Proposal prop = msg.getProposals().get(0);
 		
-		if( prop.round < state.currentRound ){
+		// a repeated request whose decision the proposer missed
+		if(state.chosenValues.containsKey(prop.round)){
+			log.debug("Received ACCEPT_REQUEST for decided round " + prop.round + ", sending the chosen value");
+			send(msg.getId(), new Message(MessageType.CHOSEN_VALUE, state.chosenValues.get(prop.round), prop.round, id));
+		} else if( prop.round < state.currentRound ){
 			log.debug("Received ACCEPT_REQUEST for round " + prop.round + " but I am expecting at least round " + state.currentRound);
 			Message nackMsg = new Message(MessageType.NACK_OLDROUND, ""+(state.currentRound), msg.getNumber(), id);
 			sendNack(nackMsg, msg.getId());
 		} else if(prop.number >= state.promiseNumber){
+			// accepting also promises the number, since Phase 2 sets need not have promised in
+			// Phase 1: a lower numbered proposal must not replace this one later
+			if(prop.number > state.promiseNumber){
+				state.promiseNumber = prop.number;
+				if(prop.number > state.lastProposalNumber)
+					state.leader = false;
+				log.debug("Updated promiseNumber: appending to log");
+				wal.logPromise(prop.number);
+			}
+			
 			log.debug("Accepted new proposal from node " + msg.getId() + ": " + prop);
-			state.acceptedProposal = prop;
+			state.acceptedProposals.put(prop.round, prop);
+			lease.grant(msg.getId(), app.nanoTime());
 			
-			// update state and write to file
-			log.debug("Updated acceptedProposal: writing state to file");
-			state.writeToFile();
+			// log the acceptance before anyone is told about it
+			log.debug("Updated acceptedProposals: appending to log");
+			wal.logAccept(prop);
 			
-			sendAcceptNotification();
+			sendAcceptNotification(prop, msg.getId());
 		} else {
 			log.debug("Ignoring new proposal: " + prop);
 			// otherwise send NACK
-			String propString = (state.acceptedProposal == null) ? "" : state.acceptedProposal.toString();
-			Message nackMsg = new Message(MessageType.NACK, propString, state.promiseNumber, id);
+			Message nackMsg = new Message(MessageType.NACK, ""+state.promiseNumber, prop.number, id, acceptedProposalsFrom(prop.round));
 			sendNack(nackMsg, msg.getId());
 		}
-		
-
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
 	}
 	
 	
-	public void sendPrepareResponse(Message msg, int otherId){
-		long t1 = System.currentTimeMillis();
-		
-		app.sendMessage(otherId, msg);
+	private void sendPrepareResponse(Message msg, int otherId){
+		send(otherId, msg);
+	}
+	
+	
+	private void sendNack(Message msg, int otherId){
+		send(otherId, msg);
+	}
+	
+	
+	// send to distinguished learner(s). If none is connected, the proposer learns in their place.
+	// With thrifty notifications only the proposer learns, and it alone tells the other nodes
+	private void sendAcceptNotification(Proposal prop, int proposerId){
+		Message msg = new Message(MessageType.ACCEPT_NOTIFICATION, null, prop.number, id, Collections.singletonList(prop));
+		if(PaxosConfig.THRIFTY_NOTIFY){
+			log.debug("Preparing to send out " + msg + " to proposer " + proposerId);
+			send(proposerId, msg);
+			return;
+		}
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		log.debug("Preparing to send out " + msg + " to DLs");
+		List<Integer> to = new ArrayList<>(distinguishedLearners);
+		boolean reached = false;
+		for(Integer learnerID : distinguishedLearners)
+			reached |= app.isConnected(learnerID);
+		if(!reached && !distinguishedLearners.contains(proposerId))
+			to.add(proposerId);
+		broadcast(to, msg);
 	}
 	
 	
-	public void sendNack(Message msg, int otherId){
-		long t1 = System.currentTimeMillis();
+	
+	
+//*************************************************8
+//	Learner methods	
+	
+	// receive from acceptor
+	private void receiveAcceptNotification(Message msg){
+		// parse message for accepted proposal
+		int accId = msg.getId();
+		Proposal prop = msg.getProposals().get(0);
+		
+		if(isDecided(prop.round)){
+			log.debug("Received accepted proposal from node " + accId + " for decided round " + prop.round);
+			return;
+		}
 		
-		app.sendMessage(otherId, msg);
+		// add the acceptor's weight to the tally for this proposal, and inform
+		// other learners if it now has a quorum
+		log.debug("Received new accepted proposal from node {} for round {}", accId, prop.round);
+		String chosenVal = quorum.record(accId, prop);
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		if(chosenVal != null){
+			log.debug("Chosen value (" + accId + ") = " + chosenVal);
+			log.info("Determined new chosen value " + chosenVal + " for round " + prop.round);
+			List<Integer> holders = quorum.holders(prop.round, prop.number);
+			updateChosenValue(prop.round, chosenVal);
+			sendChosenValue(prop.round, prop.number, chosenVal, holders);
+		}
+	}	
+	
+	
+	// nodes that accepted the chosen proposal already hold its value, so they are only told the
+	// round and proposal number, in a COMMIT sent with the next hand-off. The others get the value
+	private void sendChosenValue(int round, int number, String value, List<Integer> holders){
+		List<Integer> others = new ArrayList<>(allNodes);
+		others.removeAll(holders);
+		others.remove((Integer)id);
+		log.debug("Sending chosen value for round " + round + " to " + others + ", commit to " + holders);
+		broadcast(others, new Message(MessageType.CHOSEN_VALUE, value, round, id));
+		
+		lastCommit = new Proposal(number, null, round);
+		commits.add(lastCommit);
+		commitHolders.addAll(holders);
+		commitHolders.remove(id);
 	}
 	
 	
-	// send to distinguished learner(s)
-	public void sendAcceptNotification(){
-		long t1 = System.currentTimeMillis();
+	// round was chosen with proposal number, as node from has learned: apply the value if that is the
+	// proposal we accepted. Otherwise the value is on its way in a CHOSEN_VALUE, or is fetched if it does not come
+	private void receiveCommit(Proposal commit, int from){
+		heardChosen(from, commit.round);
+		if(isDecided(commit.round))
+			return;
 		
-		Message msg = new Message(MessageType.ACCEPT_NOTIFICATION, state.acceptedProposal.toString(), state.acceptedProposal.number, id);
-		log.debug("Preparing to send out " + msg + " to DLs");
-		for(Integer learnerID : distinguishedLearners){
-			app.sendMessage(learnerID, msg);
+		Proposal accepted = state.acceptedProposals.get(commit.round);
+		if(accepted != null && accepted.number == commit.number){
+			log.info("Round " + commit.round + " chosen with proposal " + commit.number + ", applying the value we accepted : " + accepted.value);
+			updateChosenValue(commit.round, accepted.value);
+		}
+	}
+	
+	
+	private void receiveChosenValue(Message msg){
+		int theirRound = msg.getNumber();
+		heardChosen(msg.getId(), theirRound);
+		if(theirRound < state.snapshotRound){
+			log.debug("Received chosen value from node " + msg.getId() + " for round " + theirRound + ", already in snapshot");
+		} else if(!state.chosenValues.containsKey(theirRound)){
+			log.info("Received new chosen value from node " + msg.getId() + " for round " + theirRound + " : " + msg.getValue());
+			updateChosenValue(theirRound, msg.getValue());
+		} else {
+			if(state.chosenValues.get(theirRound).equals(msg.getValue()))
+				log.debug("Chosen value confirmed from node " + msg.getId() + " for round " + theirRound + " : " + msg.getValue());
+			else
+				log.warn("PROBLEM! CONFLICTING CHOSEN VALUE FROM " + msg.getId() + " for round " + theirRound + " : " + msg.getValue() + ". Current chosen value = " + state.chosenValues.get(theirRound));
+		}
+	}
+	
+	
+	// node has decided round, as its CHOSEN_VALUE, COMMIT, NACK_OLDROUND or CATCHUP tells us
+	private void heardChosen(int node, int round){
+		peerChosenRound[node] = Math.max(peerChosenRound[node], round);
+		highestChosenRound = Math.max(highestChosenRound, round);
+	}
+	
+	
+	// the next round to deliver is known to be decided, by us for a later round or by another
+	// node, and its value is still missing a tick later: its CHOSEN_VALUE was probably lost, with
+	// only one node announcing each value, or we were down when it was chosen. Ask a node that has
+	// decided it to stream us the missing rounds, unless a request is already open. This holds for
+	// a leader too, which may have been elected before it learned every round
+	private void fetchMissingRounds(long now){
+		int gap = state.nextDeliveryRound;
+		boolean stalled = gap <= highestChosenRound;
+		if(stalled && gap == stalledRound && (!catchingUp || now - catchupSentNanos > CATCHUP_TIMEOUT_NANOS)){
+			int from = catchupSource(gap);
+			if(from >= 0)
+				requestCatchup(from, now);
+		}
+		stalledRound = stalled ? gap : -1;
+	}
+	
+	
+	// the first connected node after the one we asked last that is known to have decided round,
+	// so a node that could not help is not asked twice in a row
+	private int catchupSource(int round){
+		for(int i=1; i<=Nprocs; i++){
+			int node = Math.floorMod(catchupFrom + i, Nprocs);
+			if(node != id && peerChosenRound[node] >= round && app.isConnected(node))
+				return node;
+		}
+		return -1;
+	}
+	
+	
+	private void requestCatchup(int from, long now){
+		log.debug("Round " + state.nextDeliveryRound + " missing, chosen up to " + highestChosenRound + ", asking node " + from + " to catch us up");
+		send(from, new Message(MessageType.CHOSEN_REQUEST, "", state.nextDeliveryRound, id));
+		catchingUp = true;
+		catchupSentNanos = now;
+		catchupFrom = from;
+	}
+	
+	
+	// a node is missing the rounds from number on. Send it the next chunk of the chosen values we
+	// know of, or our app state if it needs rounds we only have in a snapshot
+	private void receiveChosenRequest(Message msg){
+		int from = msg.getNumber();
+		if(from < state.snapshotRound){
+			log.info("Node " + msg.getId() + " asked for round " + from + ", which is only in our snapshot, sending app state for rounds below " + state.nextDeliveryRound);
+			sendSnapshot(msg.getId());
+			return;
 		}
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		List<Proposal> chunk = new ArrayList<>();
+		long bytes = 0;
+		for(int round=from; round<=highestChosenRound && bytes<PaxosConfig.CATCHUP_CHUNK_BYTES; round++){
+			String value = state.chosenValues.get(round);
+			if(value != null){
+				chunk.add(new Proposal(0, value, round));
+				bytes += value.length() + 12;
+			}
+		}
+		log.debug("Sending node " + msg.getId() + " " + chunk.size() + " chosen values from round " + from);
+		sendCatchup(msg.getId(), new Message(MessageType.CATCHUP, ""+highestChosenRound, from, id, chunk), bytes);
 	}
 	
 	
+	// the app state for the rounds we have delivered, split into SNAPSHOT messages that each fit a
+	// frame. Each carries "<offset> <total length> <chars>" as its value, a total of -1 standing for
+	// an app that keeps no state. A chunk never ends between the two chars of a surrogate pair
+	private void sendSnapshot(int to){
+		String snapshot = app.takeSnapshot();
+		int upTo = state.nextDeliveryRound;
+		if(snapshot == null){
+			sendCatchup(to, new Message(MessageType.SNAPSHOT, "0 -1 ", upTo, id), 0);
+			return;
+		}
+		
+		int offset = 0;
+		do {
+			int end = Math.min(snapshot.length(), offset + SNAPSHOT_CHUNK_CHARS);
+			if(end < snapshot.length() && Character.isHighSurrogate(snapshot.charAt(end-1)))
+				end--;
+			String chunk = offset + " " + snapshot.length() + " " + snapshot.substring(offset, end);
+			sendCatchup(to, new Message(MessageType.SNAPSHOT, chunk, upTo, id), end - offset);
+			offset = end;
+		} while(offset < snapshot.length());
+	}
+	
 	
+	// catch-up replies share CATCHUP_BYTES_PER_SEC, so a transfer cannot starve the live rounds.
+	// A reply over the budget waits until the ones before it have drained
+	private void sendCatchup(int to, Message msg, long bytes){
+		long now = app.nanoTime();
+		long start = Math.max(now, catchupAllowedNanos);
+		catchupAllowedNanos = start + bytes*1000000000L/PaxosConfig.CATCHUP_BYTES_PER_SEC;
+		long delayMs = (start - now)/1000000;
+		if(delayMs == 0)
+			send(to, msg);
+		else
+			app.schedule(() -> enqueue(() -> send(to, msg)), delayMs);
+	}
 	
-//*************************************************8
-//	Learner methods	
 	
-	public void learnerInit(){
-		state.acceptedProposals = new Proposal[Nprocs];
+	// a chunk of the rounds we asked for. Apply them, and ask for the next one while still behind
+	private void receiveCatchup(Message msg){
+		catchingUp = false;
+		heardChosen(msg.getId(), Integer.parseInt(msg.getValue()));
+		
+		int before = state.nextDeliveryRound;
+		List<Proposal> chunk = msg.getProposals();
+		for(Proposal p : chunk){
+			if(!isDecided(p.round))
+				updateChosenValue(p.round, p.value);
+		}
+		log.debug("Caught up " + chunk.size() + " rounds from node " + msg.getId() + ", next to deliver is " + state.nextDeliveryRound);
+		
+		// a node without the round we need lets the tick ask another one later
+		if(state.nextDeliveryRound > before && state.nextDeliveryRound <= highestChosenRound)
+			requestCatchup(msg.getId(), app.nanoTime());
 	}
 	
 	
-	// receive from acceptor
-	public synchronized void receiveAcceptNotification(Message msg){
-		long t1 = System.currentTimeMillis();
+	// a chunk of the app state for every round below number, from a node that has discarded the
+	// rounds we were missing. Once every chunk is here, install it as our own snapshot and fetch
+	// the rounds after it. Chunks of an older transfer are dropped when another one starts
+	private void receiveSnapshot(Message msg){
+		int upTo = msg.getNumber();
+		if(upTo <= state.nextDeliveryRound){
+			log.debug("Snapshot for rounds below " + upTo + " from node " + msg.getId() + " is behind us, ignoring it");
+			catchingUp = false;
+			return;
+		}
 		
-		// parse message for accepted proposal
-		int accId = msg.getId();
-		Proposal prop = Proposal.fromString(msg.getValue());
+		String value = msg.getValue();
+		int lengthAt = value.indexOf(' ');
+		int chunkAt = value.indexOf(' ', lengthAt+1);
+		int offset = Integer.parseInt(value.substring(0, lengthAt));
+		int length = Integer.parseInt(value.substring(lengthAt+1, chunkAt));
+		if(upTo != snapshotChunksUpTo || msg.getId() != snapshotChunksFrom){
+			snapshotChunks.clear();
+			snapshotChunksUpTo = upTo;
+			snapshotChunksFrom = msg.getId();
+		}
+		snapshotChunks.put(offset, value.substring(chunkAt+1));
 		
-		// store proposal in acceptedProposals
-		state.acceptedProposals[accId] = prop;
-		log.debug("Received new accepted proposal from node " + accId);
+		StringBuilder snapshot = new StringBuilder(Math.max(0, length));
+		for(Map.Entry<Integer, String> chunk : snapshotChunks.entrySet()){
+			if(chunk.getKey() != snapshot.length())
+				break;
+			snapshot.append(chunk.getValue());
+		}
+		if(snapshot.length() < length){
+			// the transfer is progressing, so the catch-up request is not timed out
+			log.debug("Received " + snapshot.length() + " of " + length + " chars of the snapshot for rounds below " + upTo + " from node " + msg.getId());
+			catchupSentNanos = app.nanoTime();
+			return;
+		}
+		catchingUp = false;
+		snapshotChunks.clear();
+		snapshotChunksUpTo = -1;
 		
-		// update state and write to file
-		log.debug("Updated acceptedProposals: writing state to file");
-		state.writeToFile();
+		log.info("Installing app snapshot for rounds below " + upTo + " from node " + msg.getId());
+		if(length >= 0)
+			app.installSnapshot(snapshot.toString());
 		
+		state.chosenValues.keySet().removeIf(round -> round < upTo);
+		state.acceptedProposals.keySet().removeIf(round -> round < upTo);
+		state.receivedProposals.keySet().removeIf(round -> round < upTo);
+		acceptSentNanos.keySet().removeIf(round -> round < upTo);
+		for(int round=state.snapshotRound; round<upTo; round++)
+			quorum.remove(round);
 		
-		// inform other learners if value has been chosen if round has incremented
-		if(state.currentRound == prop.round){
-			// check if a value has been chosen
-			String chosenVal = checkForChosenValue();
-			
-			if(chosenVal != null){
-				log.debug("Chosen value (" + accId + ") = " + chosenVal);
-				log.info("Determined new chosen value " + chosenVal + " for round " + state.currentRound);
-				updateChosenValue(state.currentRound, chosenVal);
-				sendChosenValue();
-				// increment round number
-				state.currentRound++;
-				state.receivedProposal = null;
-				log.debug("Updated round to " + state.currentRound + " : writing state to file");
-				state.writeToFile();
+		// our values still in flight there were decided without us, so propose them again
+		List<Integer> staleRounds = new ArrayList<>(state.inFlight.keySet());
+		Collections.sort(staleRounds, Collections.reverseOrder());
+		for(int round : staleRounds){
+			if(round < upTo){
+				requeue(state.inFlight.remove(round));
+				slowRounds.remove(round);
+			}
+		}
+		// values chosen for us there were applied by the snapshot
+		for(int round : new ArrayList<>(chosenFutures.keySet())){
+			if(round < upTo){
+				CompletableFuture<Integer> future = chosenFutures.remove(round);
+				completions.add(() -> future.complete(round));
 			}
 		}
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
-	}	
+		state.snapshotRound = upTo;
+		state.nextDeliveryRound = upTo;
+		state.currentRound = Math.max(state.currentRound, upTo);
+		state.nextRound = Math.max(state.nextRound, upTo);
+		highestChosenRound = Math.max(highestChosenRound, upTo-1);
+		while(state.chosenValues.containsKey(state.currentRound))
+			state.currentRound++;
+		writeSnapshot((length >= 0) ? snapshot.toString() : null);
+		
+		deliverChosenValues();
+		if(state.nextDeliveryRound <= highestChosenRound)
+			requestCatchup(msg.getId(), app.nanoTime());
+		fillWindow();
+	}
 	
 	
-	private String checkForChosenValue(){
+	private void updateChosenValue(int round, String value){
+		state.chosenValues.put(round, value);
+		highestChosenRound = Math.max(highestChosenRound, round);
 		
-		// reset chosenChecker to check for value
-		Map<String, Float> chosenChecker = new HashMap<>();
+		Long sent = acceptSentNanos.remove(round);
+		if(sent != null)
+			phase2Nanos.record(app.nanoTime() - sent);
 		
-		for(int i=0; i<Nprocs; i++){
-			Proposal p = state.acceptedProposals[i];
-			if(p != null && p.round==state.currentRound){
-				float sum = (chosenChecker.containsKey(p.value)) ? chosenChecker.get(p.value) : 0;
-				sum += acceptorWeights[i];
-				if(sum>0.5){
-					return p.value;
-				}
-				chosenChecker.put(p.value, sum);
+		// per-round bookkeeping for this round is no longer needed. The proposal we accepted is
+		// kept until the round is in a snapshot, so Phase 1 replies still report it
+		quorum.remove(round);
+		state.receivedProposals.remove(round);
+		
+		// if this was one of our rounds and another value won, propose ours again
+		String ours = state.inFlight.remove(round);
+		slowRounds.remove(round);
+		if(ours != null && !ours.equals(value)){
+			log.debug("Round " + round + " chose " + value + ", requeueing " + ours);
+			requeue(ours);
+		}
+		if(value.equals(ours) || forwarded.removeFirstOccurrence(value)){
+			// our value won, its future completes once the round is delivered
+			Deque<CompletableFuture<Integer>> futures = proposedFutures.get(value);
+			if(futures != null){
+				chosenFutures.put(round, futures.poll());
+				if(futures.isEmpty())
+					proposedFutures.remove(value);
 			}
 		}
 		
-		return null;
+		// advance past every contiguous decided round
+		while(state.chosenValues.containsKey(state.currentRound))
+			state.currentRound++;
+		
+		// without Multi-Paxos every round runs its own Phase 1
+		if(!PaxosConfig.MULTI_PAXOS && ours != null)
+			state.leader = false;
+		
+		wal.logChosen(round, value);
+		deliverChosenValues();
+		fillWindow();
 	}
 	
 	
-	private void sendChosenValue(){
-		long t1 = System.currentTimeMillis();
+	// hand decided values to the app in round order, stopping at the first gap
+	private void deliverChosenValues(){
+		while(state.chosenValues.containsKey(state.nextDeliveryRound)){
+			int round = state.nextDeliveryRound++;
+			String value = state.chosenValues.get(round);
+			app.deliver(round, value);
+			lastDelivered = value;
+			rounds.mark();
+			for(DecisionListener listener : decisionListeners)
+				listener.onDecision(round, value);
+			
+			CompletableFuture<Integer> future = chosenFutures.remove(round);
+			if(future != null)
+				completions.add(() -> future.complete(round));
+		}
 		
-		log.debug("Sending chosen value for round " + state.currentRound + " " + state.chosenValues + " to all");
-		Message msg = new Message(MessageType.CHOSEN_VALUE, state.chosenValues.get(state.currentRound), state.currentRound, id);
-		for(int i=0; i<Nprocs; i++){
-			app.sendMessage(i, msg);
+		// reads whose index has now been applied
+		while(!readsAwaitingDelivery.isEmpty() && readsAwaitingDelivery.firstKey() <= state.nextDeliveryRound){
+			for(Runnable query : readsAwaitingDelivery.pollFirstEntry().getValue())
+				query.run();
 		}
+		maybeSnapshot();
+	}
+	
+	
+	private boolean isDecided(int round){
+		return round < state.snapshotRound || state.chosenValues.containsKey(round);
+	}
+	
+	
+	// once SNAPSHOT_INTERVAL rounds have been applied since the last snapshot, save the
+	// app state with the protocol state, drop the chosen values it covers and empty the log
+	private void maybeSnapshot(){
+		if(state.nextDeliveryRound - state.snapshotRound < PaxosConfig.SNAPSHOT_INTERVAL)
+			return;
+		
+		long t1 = System.currentTimeMillis();
+		int upTo = state.nextDeliveryRound;
+		state.chosenValues.keySet().removeIf(round -> round < upTo);
+		state.acceptedProposals.keySet().removeIf(round -> round < upTo);
+		state.snapshotRound = upTo;
+		writeSnapshot(app.takeSnapshot());
 		
 		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		log.info("Wrote snapshot for rounds below " + upTo + " in " + (t2-t1) + " ms");
 	}
 	
 	
-	private synchronized void receiveChosenValue(Message msg){
-		long t1 = System.currentTimeMillis();
+	private boolean writeState(){
+		long t1 = System.nanoTime();
+		boolean written = state.writeToFile(stateFilename);
+		stateWriteNanos.record(System.nanoTime() - t1);
+		return written;
+	}
+	
+	
+	// save the state with the app state for the rounds below snapshotRound, then empty the log
+	private void writeSnapshot(String appSnapshot){
+		state.appSnapshot = appSnapshot;
+		boolean written = writeState();
+		state.appSnapshot = null;
 		
-		int theirRound = msg.getNumber();
-		if(!state.chosenValues.containsKey(theirRound)){
-			log.info("Received new chosen value from node " + msg.getId() + " for round " + theirRound + " : " + msg.getValue());
-			updateChosenValue(theirRound, msg.getValue());
-		} else {
-			if(state.chosenValues.get(theirRound).equals(msg.getValue()))
-				log.debug("Chosen value confirmed from node " + msg.getId() + " for round " + theirRound + " : " + msg.getValue());
-			else
-				log.warn("PROBLEM! CONFLICTING CHOSEN VALUE FROM " + msg.getId() + " for round " + theirRound + " : " + msg.getValue() + ". Current chosen value = " + state.chosenValues.get(theirRound));
+		if(written){
+			try {
+				wal.reset();
+			} catch (IOException e) {
+				log.error("Could not truncate write-ahead log after snapshot: " + e.getMessage());
+			}
 		}
+	}
+	
+	
+	
+//*************************************************8
+//	Outgoing messages	
+	
+	// messages are only sent once the log records they depend on are durable
+	private static class Outgoing {
+		List<Integer> to;
+		Message msg;
 		
-		long t2 = System.currentTimeMillis();
-		log.trace("Elapsed time = " + (t2-t1));
+		Outgoing(List<Integer> to, Message msg){
+			this.to = to;
+			this.msg = msg;
+		}
 	}
 	
+	// queue a message; called on the protocol thread
+	private void send(int to, Message msg){
+		outbox.add(new Outgoing(Collections.singletonList(to), msg));
+	}
 	
-	private void updateChosenValue(int round, String value){
-		state.chosenValues.put(round, value);
-		// prepare for next round
-		state.acceptedProposal = null;
-		state.receivedProposal = null;
-		state.writeToFile();
+	// queue one message for several nodes; it is encoded once for all of them
+	private void broadcast(List<Integer> to, Message msg){
+		if(!to.isEmpty())
+			outbox.add(new Outgoing(to, msg));
+	}
+	
+	// give the persister the messages and completions queued since the last hand-off. It syncs
+	// the log up to everything appended so far, then sends. Jobs run in order, and a job whose
+	// records were already written by an earlier sync skips the disk, so a burst of events
+	// shares one flush. Futures are completed there too, so their callbacks may block or propose again
+	private void handOff(){
+		if(!commits.isEmpty()){
+			broadcast(new ArrayList<>(commitHolders), new Message(MessageType.COMMIT, null, 0, id, commits));
+			commits = new ArrayList<>();
+			commitHolders.clear();
+		}
+		
+		long seq = wal.lastSequence();
+		if(outbox.isEmpty() && completions.isEmpty() && wal.isSynced(seq))
+			return;
+		
+		List<Outgoing> toSend = outbox;
+		List<Runnable> toComplete = completions;
+		outbox = new ArrayList<>();
+		completions = new ArrayList<>();
+		
+		pendingWork.incrementAndGet();
+		persister.execute(() -> {
+			try {
+				try {
+					long t1 = System.nanoTime();
+					wal.sync(seq);
+					walSyncNanos.record(System.nanoTime() - t1);
+					app.sendBatch(() -> {
+						for(Outgoing out : toSend)
+							app.broadcast(out.to, out.msg);
+					});
+				} catch (IOException e) {
+					log.error("Could not sync write-ahead log, dropping " + toSend.size() + " messages: " + e.getMessage());
+				} catch (RuntimeException e) {
+					// the executor would swallow it, so report it and still complete the futures
+					log.error("Could not send " + toSend.size() + " messages: " + e);
+					e.printStackTrace();
+				}
+				
+				for(Runnable r : toComplete)
+					r.run();
+			} finally {
+				pendingWork.decrementAndGet();
+			}
+		});
 	}
 	
 	
-
+	
 //*************************************************8
 //	Getters and Setters
 	
@@ -514,35 +1658,38 @@ public class PaxosNode{
 	public boolean isDistinguishedProposer() {
 		return distinguishedProposer;
 	}
-
+	
 	public boolean isDistinguishedLearner() {
 		return distinguishedLearners.contains(id);
 	}
-
-	public void reset(String value) {
-		log.info("Resetting Paxos state with preferred value: " + value);
-		state.myValue = value;
-		if(isDistinguishedLearner())
-			learnerInit();
-		
-		// update state and write to file
-		log.debug("Reset state: writing state to file");
-		state.writeToFile();
-	}
-
-	public String getChosenValueForRound(int round){
+	
+	// null if the round is not decided yet, or only held in a snapshot
+	public synchronized String getChosenValueForRound(int round){
 		if(state.chosenValues.containsKey(round))
 			return state.chosenValues.get(round);
 		return null;
 	}
-
-
-	public String getLatestChosenValue() {
-		return getChosenValueForRound(state.currentRound-1);
+	
+	
+	// value of the last round applied by the app, which is kept when a snapshot drops the
+	// chosen values. Null until a round is delivered, including after a restart from a snapshot
+	// with no rounds after it
+	public synchronized String getLatestChosenValue() {
+		return lastDelivered;
 	}
 	
-	public int getCurrentRound(){
+	public synchronized int getCurrentRound(){
 		return state.currentRound;
 	}
 	
+	// whether Phase 1 succeeded and we are proposing values
+	public synchronized boolean isLeader(){
+		return state.leader;
+	}
+	
+	// node last heard leading within a lease, or -1
+	public synchronized int getLeaderId(){
+		return lease.liveLeader(app.nanoTime());
+	}
+	
 }
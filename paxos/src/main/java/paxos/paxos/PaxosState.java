@@ -2,10 +2,16 @@ package paxos.paxos;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,26 +23,49 @@ public class PaxosState {
 	
 	public PaxosState(int id) {
 		this.id = id;
+		acceptedProposals = new HashMap<>();
 		chosenValues = new HashMap<>();
+		clearProposer();
 	}
 	
 	int id;
 	
-	// Proposer fields
+	// Proposer fields. Only lastProposalNumber and currentRound are persisted: the rest describes
+	// a campaign and rounds in flight that do not outlive a restart, and would be stale in a
+	// snapshot once the log after it is replayed
 	int lastProposalNumber = -1;
-	float prepareResponseSum = 0;
-	float nackSum = 0;
-	Proposal receivedProposal;
-	int currentRound = 0;
+	transient long prepareResponseSum;	// fixed point, see QuorumTracker
+	transient long nackSum;
+	transient Map<Integer,Proposal> receivedProposals;	// highest numbered proposal reported per round in Phase 1
+	int currentRound = 0;	// lowest round not yet known to be chosen
+	transient int nextRound;		// next round this proposer will assign a value to
+	transient boolean preparing;	// Phase 1 outstanding for lastProposalNumber
+	transient boolean leader;	// Phase 1 succeeded for lastProposalNumber
+	transient Deque<String> pendingValues;	// values waiting for a free slot in the window
+	transient Map<Integer,String> inFlight;	// rounds we have proposed that are not yet chosen
 	
 	// Acceptor fields
-	Proposal acceptedProposal = null;
+	Map<Integer,Proposal> acceptedProposals;	// keyed by round
 	int promiseNumber = -1;
 	
-	// Learner fields
-	Proposal[] acceptedProposals;
-	String myValue;
-	Map<Integer,String> chosenValues;
+	// Learner fields. Accept notifications are tallied by the QuorumTracker and not persisted
+	Map<Integer,String> chosenValues;	// only rounds from snapshotRound on
+	int snapshotRound = 0;		// every round below this is applied in appSnapshot
+	String appSnapshot;			// only set while the snapshot is being written or loaded
+	transient int nextDeliveryRound = 0;	// not persisted: set to snapshotRound on restart
+	
+	
+	// a proposer that is neither campaigning nor proposing anything
+	void clearProposer(){
+		prepareResponseSum = 0;
+		nackSum = 0;
+		receivedProposals = new HashMap<>();
+		nextRound = currentRound;
+		preparing = false;
+		leader = false;
+		pendingValues = new ArrayDeque<>();
+		inFlight = new HashMap<>();
+	}
 	
 	
 	@Override
@@ -50,20 +79,42 @@ public class PaxosState {
 	
 	public static PaxosState fromString(String string) throws IllegalArgumentException{
 		try{
-			return gson.fromJson(string, PaxosState.class);
+			PaxosState state = gson.fromJson(string, PaxosState.class);
+			if(state != null)
+				state.clearProposer();
+			return state;
 		} catch(JsonSyntaxException e){
 			throw new IllegalArgumentException("Could not decode PaxosState from string");
 		}
 	}
 	
 	
-	public void writeToFile(){
-		File stateFile = new File("./states/node_" + id + ".state");
-		try (PrintWriter pw = new PrintWriter(stateFile);){
+	public static String filename(int id){
+		return "./states/node_" + id + ".state";
+	}
+	
+	// write to a temporary file and rename it over the old one, so a crash
+	// part way through never leaves a truncated state file
+	public boolean writeToFile(String filename){
+		File stateFile = new File(filename);
+		File tmpFile = new File(filename + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmpFile);
+				PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));){
 			pw.println(this.toString());
-		} catch (FileNotFoundException e) {
+			pw.flush();
+			out.getFD().sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		try {
+			Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
+		return true;
 	}
 	
 	public static PaxosState readFromFile(String filename){
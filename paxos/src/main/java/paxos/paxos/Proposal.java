@@ -34,4 +34,16 @@ public class Proposal {
 		}
 	}
 	
+	public int getNumber() {
+		return number;
+	}
+	
+	public int getRound() {
+		return round;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
 }
@@ -0,0 +1,201 @@
+package paxos.paxos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Acceptor weights in fixed point and the learner's running tally of ACCEPT_NOTIFICATIONs.
+ * Weights are stored in parts per WEIGHT_SCALE so sums are exact.
+ *
+ * Quorums are flexible: a Phase 1 quorum has more than the fraction q1 of the total weight of
+ * all acceptors, and a Phase 2 quorum more than q2, whatever that total rounds to. Any two
+ * quorums of different phases share an acceptor as long as q1 + q2 >= 1. The default of one
+ * half each makes both a plain majority. A smaller q2 makes accepts cheaper, paid for with a
+ * larger Phase 1 when the leader changes.
+ *
+ * Each acceptor counts towards the highest numbered proposal it reported for a round, and
+ * the sum for that (round, proposal number) is updated in place. Values are never compared:
+ * one proposal number only ever carries one value. Tallies for open rounds live in a ring
+ * indexed by round and are reused once their round is decided, so a notification costs O(1)
+ * and does not allocate. Rounds that collide in the ring go to an overflow map.
+ */
+class QuorumTracker {
+	
+	static final long WEIGHT_SCALE = 1000000;
+	
+	private long[] weights;
+	private long totalWeight;
+	private long phase1Threshold;	// parts per WEIGHT_SCALE of the total weight
+	private long phase2Threshold;
+	private Tally[] ring;
+	private int mask;
+	private Map<Integer, Tally> overflow = new HashMap<>();
+	private Tally spare;	// released by the overflow map, reused before allocating
+	
+	QuorumTracker(double[] acceptorWeights, double q1, double q2, int ringSize) throws IllegalArgumentException {
+		weights = new long[acceptorWeights.length];
+		for(int i=0; i<weights.length; i++){
+			weights[i] = Math.round(acceptorWeights[i]*WEIGHT_SCALE);
+			totalWeight += weights[i];
+		}
+		
+		phase1Threshold = Math.round(q1*WEIGHT_SCALE);
+		phase2Threshold = Math.round(q2*WEIGHT_SCALE);
+		if(phase1Threshold < 0 || phase1Threshold >= WEIGHT_SCALE || phase2Threshold < 0 || phase2Threshold >= WEIGHT_SCALE)
+			throw new IllegalArgumentException("Quorum thresholds must be at least 0 and below 1, got q1 = " + q1 + ", q2 = " + q2);
+		if(phase1Threshold + phase2Threshold < WEIGHT_SCALE)
+			throw new IllegalArgumentException("Phase 1 and Phase 2 quorums may not intersect: q1 + q2 = " + (q1+q2) + " is below 1");
+		if(totalWeight <= 0)
+			throw new IllegalArgumentException("Acceptor weights add up to " + totalWeight + "/" + WEIGHT_SCALE + ", no quorum is possible");
+		
+		int size = Integer.highestOneBit(Math.max(1, ringSize-1)) << 1;
+		ring = new Tally[size];
+		mask = size-1;
+	}
+	
+	long weight(int acceptorId){
+		return weights[acceptorId];
+	}
+	
+	long totalWeight(){
+		return totalWeight;
+	}
+	
+	int size(){
+		return weights.length;
+	}
+	
+	boolean isPhase1Quorum(long sum){
+		return sum*WEIGHT_SCALE > phase1Threshold*totalWeight;
+	}
+	
+	boolean isPhase2Quorum(long sum){
+		return sum*WEIGHT_SCALE > phase2Threshold*totalWeight;
+	}
+	
+	
+	/**
+	 * Count prop as accepted by acceptorId.
+	 * @return the chosen value if this notification completed a quorum, otherwise null
+	 */
+	String record(int acceptorId, Proposal prop){
+		Tally t = tallyFor(prop.round);
+		
+		// repeated or out of date notification
+		int previous = t.acceptedNumber[acceptorId];
+		if(prop.number <= previous)
+			return null;
+		
+		long w = weights[acceptorId];
+		if(previous >= 0)
+			t.sums[t.indexOf(previous)] -= w;
+		t.acceptedNumber[acceptorId] = prop.number;
+		
+		int i = t.indexOf(prop.number);
+		if(i < 0)
+			i = t.add(prop.number, prop.value);
+		t.sums[i] += w;
+		
+		return isPhase2Quorum(t.sums[i]) ? t.values[i] : null;
+	}
+	
+	// acceptors whose latest notification for round reported the proposal number
+	List<Integer> holders(int round, int number){
+		Tally t = ring[round & mask];
+		if(t == null || t.round != round)
+			t = overflow.get(round);
+		
+		List<Integer> holders = new ArrayList<>();
+		if(t == null)
+			return holders;
+		for(int i=0; i<weights.length; i++){
+			if(t.acceptedNumber[i] == number)
+				holders.add(i);
+		}
+		return holders;
+	}
+	
+	// forget a decided round
+	void remove(int round){
+		int slot = round & mask;
+		Tally t = ring[slot];
+		if(t != null && t.round == round){
+			t.round = -1;
+			return;
+		}
+		t = overflow.remove(round);
+		if(t != null)
+			spare = t;
+	}
+	
+	private Tally tallyFor(int round){
+		int slot = round & mask;
+		Tally t = ring[slot];
+		if(t != null && t.round == round)
+			return t;
+		
+		if(t == null || t.round == -1){
+			if(t == null){
+				t = new Tally(weights.length);
+				ring[slot] = t;
+			}
+			t.reset(round);
+			return t;
+		}
+		
+		// slot taken by another open round
+		t = overflow.get(round);
+		if(t == null){
+			t = (spare != null) ? spare : new Tally(weights.length);
+			spare = null;
+			t.reset(round);
+			overflow.put(round, t);
+		}
+		return t;
+	}
+	
+	
+	private static class Tally {
+		int round = -1;					// -1 while free
+		int[] acceptedNumber;			// per acceptor, -1 before its first notification
+		int[] numbers = new int[2];		// distinct proposal numbers reported for the round
+		long[] sums = new long[2];
+		String[] values = new String[2];
+		int count;
+		
+		Tally(int nAcceptors){
+			acceptedNumber = new int[nAcceptors];
+		}
+		
+		void reset(int round){
+			this.round = round;
+			Arrays.fill(acceptedNumber, -1);
+			Arrays.fill(values, 0, count, null);
+			count = 0;
+		}
+		
+		int indexOf(int number){
+			for(int i=0; i<count; i++){
+				if(numbers[i] == number)
+					return i;
+			}
+			return -1;
+		}
+		
+		int add(int number, String value){
+			if(count == numbers.length){
+				numbers = Arrays.copyOf(numbers, 2*count);
+				sums = Arrays.copyOf(sums, 2*count);
+				values = Arrays.copyOf(values, 2*count);
+			}
+			numbers[count] = number;
+			sums[count] = 0;
+			values[count] = value;
+			return count++;
+		}
+	}
+	
+}
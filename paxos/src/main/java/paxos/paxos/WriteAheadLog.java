@@ -0,0 +1,297 @@
+package paxos.paxos;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the proposer, acceptor and learner decisions that must survive a crash.
+ * Records are buffered by the log* methods and made durable by sync(), which writes
+ * everything buffered so far with one FileChannel.write and force(). Threads that call
+ * sync() while another thread is forcing wait for it and then do the next force if they
+ * still need one, so concurrent handlers share a single disk flush (group commit).
+ *
+ * Record layout: int body length, int CRC32 of the body, body = byte type + fields.
+ * Replay stops at the first torn or corrupt record and the tail is truncated.
+ */
+public class WriteAheadLog {
+	
+	private static final byte PROPOSAL_NUMBER = 1;
+	private static final byte PROMISE = 2;
+	private static final byte ACCEPT = 3;
+	private static final byte CHOSEN = 4;
+	private static final int MAX_RECORD_SIZE = 256*1024*1024;	// anything larger is a corrupt length
+	
+	private FileChannel channel;
+	private ByteArrayOutputStream buffer;
+	private ByteArrayOutputStream body;
+	private DataOutputStream bodyOut;
+	private CRC32 crc;
+	private long appendedSeq = 0;
+	private long syncedSeq = 0;
+	private boolean syncing = false;
+	
+	private WriteAheadLog(String filename, long validLength) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(validLength);
+		channel.position(validLength);
+		buffer = new ByteArrayOutputStream();
+		body = new ByteArrayOutputStream();
+		bodyOut = new DataOutputStream(body);
+		crc = new CRC32();
+	}
+	
+	// start an empty log, discarding anything left from a previous run
+	public static WriteAheadLog create(String filename) throws IOException {
+		return new WriteAheadLog(filename, 0);
+	}
+	
+	// replay an existing log into state, then reopen it for appending after the last good record
+	public static WriteAheadLog recover(String filename, PaxosState state) throws IOException {
+		long validLength = replay(filename, state);
+		return new WriteAheadLog(filename, validLength);
+	}
+	
+	// the log that goes with a state file, e.g. states/node_0.state -> states/node_0.wal
+	public static String filenameFor(String stateFilename){
+		if(stateFilename.endsWith(".state"))
+			return stateFilename.substring(0, stateFilename.length()-".state".length()) + ".wal";
+		return stateFilename + ".wal";
+	}
+	
+	
+//*************************************************8
+//	Appending
+	
+	public synchronized long logProposalNumber(int number){
+		try {
+			bodyOut.writeByte(PROPOSAL_NUMBER);
+			bodyOut.writeInt(number);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return endRecord();
+	}
+	
+	public synchronized long logPromise(int number){
+		try {
+			bodyOut.writeByte(PROMISE);
+			bodyOut.writeInt(number);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return endRecord();
+	}
+	
+	public synchronized long logAccept(Proposal prop){
+		try {
+			bodyOut.writeByte(ACCEPT);
+			bodyOut.writeInt(prop.round);
+			bodyOut.writeInt(prop.number);
+			writeString(prop.value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return endRecord();
+	}
+	
+	public synchronized long logChosen(int round, String value){
+		try {
+			bodyOut.writeByte(CHOSEN);
+			bodyOut.writeInt(round);
+			writeString(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return endRecord();
+	}
+	
+	// sequence number of the last record appended, to pass to sync()
+	public synchronized long lastSequence(){
+		return appendedSeq;
+	}
+	
+	private void writeString(String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		bodyOut.writeInt(bytes.length);
+		bodyOut.write(bytes);
+	}
+	
+	// frame the record in body with its length and checksum and move it to the write buffer
+	private long endRecord(){
+		byte[] bytes = body.toByteArray();
+		body.reset();
+		crc.reset();
+		crc.update(bytes, 0, bytes.length);
+		
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(bytes.length);
+		header.putInt((int)crc.getValue());
+		buffer.write(header.array(), 0, 8);
+		buffer.write(bytes, 0, bytes.length);
+		return ++appendedSeq;
+	}
+	
+	
+//*************************************************8
+//	Group commit
+	
+	// discard every record once a snapshot has made them redundant. Anything
+	// appended but not yet synced is covered by the snapshot too.
+	public synchronized void reset() throws IOException {
+		while(syncing){
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for log sync");
+			}
+		}
+		buffer.reset();
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(false);
+		syncedSeq = appendedSeq;
+	}
+	
+	public synchronized boolean isSynced(long seq){
+		return syncedSeq >= seq;
+	}
+	
+	/**
+	 * Block until every record up to seq is on disk.
+	 */
+	public void sync(long seq) throws IOException {
+		byte[] toWrite;
+		long upTo;
+		synchronized(this){
+			while(syncing && syncedSeq < seq){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for log sync");
+				}
+			}
+			if(syncedSeq >= seq)
+				return;
+			
+			syncing = true;
+			toWrite = buffer.toByteArray();
+			buffer.reset();
+			upTo = appendedSeq;
+		}
+		
+		boolean ok = false;
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(toWrite);
+			while(buf.hasRemaining())
+				channel.write(buf);
+			if(PaxosConfig.WAL_FSYNC)
+				channel.force(false);
+			ok = true;
+		} finally {
+			synchronized(this){
+				syncing = false;
+				if(ok)
+					syncedSeq = upTo;
+				notifyAll();
+			}
+		}
+	}
+	
+	
+//*************************************************8
+//	Recovery
+	
+	// apply every intact record to state and return the length of the intact prefix
+	private static long replay(String filename, PaxosState state) throws IOException {
+		long validLength = 0;
+		CRC32 crc = new CRC32();
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))){
+			while(true){
+				int length;
+				int checksum;
+				byte[] bytes;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if(length <= 0 || length > MAX_RECORD_SIZE)
+						break;
+					bytes = new byte[length];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					break;
+				}
+				
+				crc.reset();
+				crc.update(bytes, 0, bytes.length);
+				if((int)crc.getValue() != checksum)
+					break;
+				
+				try {
+					apply(new DataInputStream(new ByteArrayInputStream(bytes)), state);
+				} catch (IOException e) {
+					break;
+				}
+				validLength += 8 + length;
+			}
+		} catch (FileNotFoundException e) {
+			return 0;
+		}
+		
+		return validLength;
+	}
+	
+	private static void apply(DataInputStream in, PaxosState state) throws IOException {
+		byte type = in.readByte();
+		switch(type){
+		case PROPOSAL_NUMBER:
+			state.lastProposalNumber = Math.max(state.lastProposalNumber, in.readInt());
+			break;
+		case PROMISE:
+			state.promiseNumber = Math.max(state.promiseNumber, in.readInt());
+			break;
+		case ACCEPT: {
+			int round = in.readInt();
+			int number = in.readInt();
+			String value = readString(in);
+			if(round >= state.snapshotRound && !state.chosenValues.containsKey(round))
+				state.acceptedProposals.put(round, new Proposal(number, value, round));
+			break;
+		}
+		case CHOSEN: {
+			int round = in.readInt();
+			String value = readString(in);
+			if(round < state.snapshotRound)
+				break;
+			state.chosenValues.put(round, value);
+			while(state.chosenValues.containsKey(state.currentRound))
+				state.currentRound++;
+			break;
+		}
+		default:
+			throw new IOException("Unknown log record type " + type);
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+}
@@ -0,0 +1,125 @@
+package paxos.kv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KVStoreTest {
+	
+	private static KVCommand put(String origin, long seq, String key, String value){
+		KVCommand cmd = new KVCommand(KVCommand.Op.PUT, key, value, null);
+		cmd.setSource(origin, seq);
+		return cmd;
+	}
+	
+	@Test
+	public void writesApply(){
+		KVStore store = new KVStore();
+		assertEquals(KVCommand.OK, store.apply(put("a", 0, "k", "v")));
+		assertEquals("v", store.get("k"));
+		
+		KVCommand cas = new KVCommand(KVCommand.Op.CAS, "k", "w", "x");
+		cas.setSource("a", 1);
+		assertEquals(KVCommand.FAILED, store.apply(cas));
+		
+		KVCommand del = new KVCommand(KVCommand.Op.DEL, "k", null, null);
+		del.setSource("a", 2);
+		assertEquals(KVCommand.OK, store.apply(del));
+		assertNull(store.get("k"));
+	}
+	
+	// a CAS from the API may expect the key to be absent
+	@Test
+	public void casExpectingAbsent(){
+		KVStore store = new KVStore();
+		KVCommand cas = new KVCommand(KVCommand.Op.CAS, "k", "v", null);
+		cas.setSource("a", 0);
+		assertEquals(KVCommand.OK, store.apply(cas));
+		assertEquals("v", store.get("k"));
+		
+		cas = new KVCommand(KVCommand.Op.CAS, "k", "w", null);
+		cas.setSource("a", 1);
+		assertEquals(KVCommand.FAILED, store.apply(cas));
+		assertEquals("v", store.get("k"));
+	}
+	
+	// a command chosen in two rounds is applied once
+	@Test
+	public void duplicateSkipped(){
+		KVStore store = new KVStore();
+		assertEquals(KVCommand.OK, store.apply(put("a", 0, "k", "1")));
+		assertEquals(KVCommand.OK, store.apply(put("a", 1, "k", "2")));
+		assertNull(store.apply(put("a", 0, "k", "1")));
+		assertEquals("2", store.get("k"));
+	}
+	
+	@Test
+	public void outOfOrderSkippedOnce(){
+		KVStore store = new KVStore();
+		assertEquals(KVCommand.OK, store.apply(put("a", 2, "k", "2")));
+		assertNull(store.apply(put("a", 2, "k", "2")));
+		assertEquals(KVCommand.OK, store.apply(put("a", 0, "k", "0")));
+		assertEquals(KVCommand.OK, store.apply(put("a", 1, "k", "1")));
+		assertNull(store.apply(put("a", 2, "k", "2")));
+		assertEquals("1", store.get("k"));
+	}
+	
+	@Test
+	public void originsAreSeparate(){
+		KVStore store = new KVStore();
+		assertEquals(KVCommand.OK, store.apply(put("a", 0, "x", "a")));
+		assertEquals(KVCommand.OK, store.apply(put("b", 0, "y", "b")));
+		assertEquals(2, store.size());
+	}
+	
+	// the set of sequence numbers applied ahead of a gap stays bounded
+	@Test
+	public void farAheadRefused(){
+		KVStore store = new KVStore();
+		String refused = store.apply(put("a", 1L << 40, "k", "v"));
+		assertTrue(refused.startsWith(KVCommand.ERROR));
+		assertTrue(KVStore.isTooFarAhead(refused));
+		assertNull(store.get("k"));
+		
+		// until the gap before it is filled
+		assertEquals(KVCommand.OK, store.apply(put("a", 65535, "k", "v")));
+		for(long seq=0; seq<65535; seq++)
+			store.apply(put("a", seq, "n", "" + seq));
+		assertEquals(KVCommand.OK, store.apply(put("a", 65536 + 65535, "k", "w")));
+	}
+	
+	// only the origins used most recently are remembered
+	@Test
+	public void leastRecentSessionForgotten(){
+		KVStore store = new KVStore();
+		store.apply(put("a", 0, "k", "a"));
+		store.apply(put("b", 0, "k", "b"));
+		store.apply(put("a", 1, "k", "a"));
+		for(int i=0; i<4095; i++)
+			store.apply(put("o" + i, 0, "k", "o"));
+		
+		assertNull(store.apply(put("a", 1, "k", "a")));
+		assertEquals(KVCommand.OK, store.apply(put("b", 0, "k", "b")));
+	}
+	
+	@Test
+	public void sessionsSurviveSnapshot(){
+		KVStore store = new KVStore();
+		store.apply(put("a", 0, "k", "v"));
+		store.apply(put("a", 2, "k", "w"));
+		
+		KVStore restored = KVStore.fromString(store.toString());
+		assertEquals("w", restored.get("k"));
+		assertNull(restored.apply(put("a", 0, "k", "v")));
+		assertNull(restored.apply(put("a", 2, "k", "w")));
+		assertEquals(KVCommand.OK, restored.apply(put("a", 1, "k", "x")));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void badSnapshotRejected(){
+		KVStore.fromString("[1, 2]");
+	}
+	
+}
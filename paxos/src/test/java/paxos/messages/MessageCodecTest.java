@@ -0,0 +1,111 @@
+package paxos.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import paxos.paxos.PaxosConfig;
+import paxos.paxos.Proposal;
+
+public class MessageCodecTest {
+	
+	private static void assertSameMessage(Message expected, Message actual){
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getValue(), actual.getValue());
+		assertEquals(expected.getNumber(), actual.getNumber());
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getProposals().size(), actual.getProposals().size());
+		for(int i=0; i<expected.getProposals().size(); i++){
+			Proposal p = expected.getProposals().get(i);
+			Proposal q = actual.getProposals().get(i);
+			assertEquals(p.getNumber(), q.getNumber());
+			assertEquals(p.getRound(), q.getRound());
+			assertEquals(p.getValue(), q.getValue());
+		}
+	}
+	
+	private static ByteBuffer bytes(int... values){
+		byte[] b = new byte[values.length];
+		for(int i=0; i<values.length; i++)
+			b[i] = (byte)values[i];
+		return ByteBuffer.wrap(b);
+	}
+	
+	@Test
+	public void roundTrip(){
+		Message msg = new Message(MessageType.PREPARE_RESPONSE, "v\u00e9lue", -7, 3, Arrays.asList(
+				new Proposal(12, "a", 0), new Proposal(Integer.MAX_VALUE, null, Integer.MIN_VALUE), new Proposal(-1, "", 100000)));
+		assertSameMessage(msg, MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(msg))));
+		
+		Message empty = new Message(MessageType.PING, null, 0, 0);
+		assertSameMessage(empty, MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(empty))));
+	}
+	
+	@Test
+	public void framesSplitAcrossReads(){
+		Message first = new Message(MessageType.ACCEPT_REQUEST, null, 5, 1, Arrays.asList(new Proposal(5, "x", 9)));
+		Message second = new Message(MessageType.CHOSEN_VALUE, "x", 9, 2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] a = MessageCodec.encodeFrame(first);
+		byte[] b = MessageCodec.encodeFrame(second);
+		out.write(a, 0, a.length);
+		out.write(b, 0, b.length);
+		byte[] stream = out.toByteArray();
+		
+		// everything up to one byte short of the first frame is left in the buffer
+		ByteBuffer partial = ByteBuffer.wrap(stream, 0, a.length-1);
+		assertNull(MessageCodec.decodeFrame(partial));
+		assertEquals(0, partial.position());
+		
+		ByteBuffer buf = ByteBuffer.wrap(stream);
+		assertSameMessage(first, MessageCodec.decodeFrame(buf));
+		assertSameMessage(second, MessageCodec.decodeFrame(buf));
+		assertEquals(stream.length, buf.position());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownType(){
+		MessageCodec.decode(bytes(100, 0, 0, 0, 0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedBody(){
+		byte[] encoded = MessageCodec.encode(new Message(MessageType.APP, "hello", 1, 1));
+		MessageCodec.decode(ByteBuffer.wrap(encoded, 0, encoded.length-2));
+	}
+	
+	// a count far beyond the bytes that follow must not be allocated for
+	@Test(expected = IllegalArgumentException.class)
+	public void proposalCountTooLarge(){
+		MessageCodec.decode(bytes(0, 0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x07));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeProposalCount(){
+		MessageCodec.decode(bytes(0, 0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x0f));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeStringLength(){
+		MessageCodec.decode(bytes(0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x0f, 0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeFrameLength(){
+		MessageCodec.decodeFrame(bytes(0xff, 0xff, 0xff, 0xff, 0x0f, 0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void frameOverLimit(){
+		int length = PaxosConfig.MAX_FRAME_BYTES + 1;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageCodec.writeVarint(out, length);
+		MessageCodec.decodeFrame(ByteBuffer.wrap(out.toByteArray()));
+	}
+	
+}
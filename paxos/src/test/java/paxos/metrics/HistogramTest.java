@@ -0,0 +1,67 @@
+package paxos.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	
+	// every value falls in a bucket whose bounds hold it, and buckets follow each other without gaps
+	@Test
+	public void bucketBounds(){
+		long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123456789, 1L << 40, Long.MAX_VALUE};
+		for(long v : values){
+			int b = Histogram.bucket(v);
+			assertTrue("value " + v + " below its bucket", Histogram.lowest(b) <= v);
+			assertTrue("value " + v + " above its bucket", v < Histogram.lowest(b+1) || b == Histogram.bucket(Long.MAX_VALUE));
+		}
+		for(int b=0; b<Histogram.bucket(Long.MAX_VALUE); b++){
+			assertEquals(b, Histogram.bucket(Histogram.lowest(b)));
+			assertEquals(b, Histogram.bucket(Histogram.lowest(b+1)-1));
+		}
+	}
+	
+	// above the linear range a bucket is at most 1/32 of its lowest value wide
+	@Test
+	public void relativeError(){
+		for(int b=64; b<Histogram.bucket(Long.MAX_VALUE); b++){
+			long width = Histogram.lowest(b+1) - Histogram.lowest(b);
+			assertTrue(width*32 <= Histogram.lowest(b));
+		}
+	}
+	
+	@Test
+	public void empty(){
+		Histogram h = new Histogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMean(), 0);
+		assertEquals(0, h.getPercentile(99));
+	}
+	
+	@Test
+	public void percentiles(){
+		Histogram h = new Histogram();
+		for(long v=1; v<=1000; v++)
+			h.record(v*1000);
+		assertEquals(1000, h.getCount());
+		assertEquals(500500, h.getMean(), 1e-6);
+		assertEquals(1000000, h.getMax());
+		
+		long p50 = h.getPercentile(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000*33/32);
+		long p99 = h.getPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 990000*33/32);
+		assertEquals(1000000, h.getPercentile(100));
+	}
+	
+	@Test
+	public void negativeCountsAsZero(){
+		Histogram h = new Histogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(50));
+	}
+	
+}
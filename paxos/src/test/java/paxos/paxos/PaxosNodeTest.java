@@ -0,0 +1,301 @@
+package paxos.paxos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import paxos.application.AbstractApp;
+import paxos.messages.Message;
+import paxos.messages.MessageType;
+import paxos.network.LatencyModel;
+import paxos.network.SimulatedNetwork;
+import paxos.network.Transport;
+
+public class PaxosNodeTest {
+	
+	private static final int ACCEPTOR = 2;
+	
+	private File nodeList;
+	
+	// one node of a SimulatedNetwork; the other endpoints are driven by the test, or are TestApps too
+	static class TestApp extends AbstractApp {
+		volatile String installed;
+		List<String> applied = Collections.synchronizedList(new ArrayList<>());	// commands, in log order
+		
+		TestApp(int id, SimulatedNetwork network) {
+			this(id, network.endpoint(id), null);
+		}
+		
+		TestApp(int id, Transport transport, String statefile) {
+			super(id, transport, statefile);
+		}
+		
+		@Override
+		public String takeSnapshot() {
+			return String.join(" ", applied);
+		}
+		
+		@Override
+		public void installSnapshot(String snapshot) {
+			installed = snapshot;
+			applied.clear();
+			if(!snapshot.isEmpty())
+				applied.addAll(Arrays.asList(snapshot.split(" ")));
+		}
+		
+		@Override
+		public void deliverCommand(int round, String command) {
+			applied.add(command);
+		}
+		
+		@Override
+		public void run_app() {}
+		
+		@Override
+		public void processMessage(Message msg) {}
+	}
+	
+	@Before
+	public void setUp() throws IOException {
+		new File("states").mkdirs();
+		nodeList = File.createTempFile("paxos-nodes", ".txt");
+		try (PrintWriter out = new PrintWriter(nodeList)){
+			for(int i=0; i<3; i++)
+				out.println("127.0.0.1 " + (5000+5*i) + " 0.33 0 0 0 0");
+		}
+	}
+	
+	@After
+	public void tearDown(){
+		nodeList.delete();
+		for(int i=0; i<3; i++){
+			new File(PaxosState.filename(i)).delete();
+			new File(WriteAheadLog.filenameFor(PaxosState.filename(i))).delete();
+		}
+	}
+	
+	// every node of the node list, running
+	private static List<TestApp> startCluster(SimulatedNetwork network){
+		List<TestApp> apps = new ArrayList<>();
+		for(int i=0; i<3; i++){
+			TestApp app = new TestApp(i, network);
+			network.addIdleCheck(app.getPaxnode()::isIdle);
+			app.getPaxnode().run();
+			apps.add(app);
+		}
+		return apps;
+	}
+	
+	private static Message acceptRequest(int from, int number, String value){
+		return new Message(MessageType.ACCEPT_REQUEST, null, number, from, Collections.singletonList(new Proposal(number, value, 0)));
+	}
+	
+	// an acceptor that never saw a Phase 1 may be in a Phase 2 set. Accepting proposal 5 promises
+	// it, so a stale leader's proposal 3 arriving afterwards is refused
+	@Test
+	public void acceptPromisesItsNumber() throws IOException {
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		List<Message> toStale = Collections.synchronizedList(new ArrayList<>());
+		List<Message> toLeader = Collections.synchronizedList(new ArrayList<>());
+		network.endpoint(0).setMessageHandler(toStale::add);
+		network.endpoint(1).setMessageHandler(toLeader::add);
+		
+		PaxosNode node = new TestApp(ACCEPTOR, network).getPaxnode();
+		network.addIdleCheck(node::isIdle);
+		node.run();
+		
+		network.endpoint(1).sendMessage(ACCEPTOR, acceptRequest(1, 5, "b"));
+		network.runFor(10);
+		network.endpoint(0).sendMessage(ACCEPTOR, acceptRequest(0, 3, "a"));
+		network.runFor(10);
+		
+		assertEquals(1, toLeader.size());
+		assertEquals(MessageType.ACCEPT_NOTIFICATION, toLeader.get(0).getType());
+		assertEquals(1, toStale.size());
+		assertEquals(MessageType.NACK, toStale.get(0).getType());
+		assertEquals("5", toStale.get(0).getValue());
+		assertEquals("b", toStale.get(0).getProposals().get(0).value);
+		
+		// the promise is logged with the accept, so it holds after a restart
+		PaxosState recovered = new PaxosState(ACCEPTOR);
+		WriteAheadLog.recover(WriteAheadLog.filenameFor(PaxosState.filename(ACCEPTOR)), recovered);
+		assertEquals(5, recovered.promiseNumber);
+		assertEquals("b", recovered.acceptedProposals.get(0).value);
+		assertTrue(recovered.chosenValues.isEmpty());
+	}
+	
+	// a snapshot too large for one frame arrives in chunks, in any order, and is installed once complete
+	@Test
+	public void snapshotInChunks(){
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		TestApp app = new TestApp(ACCEPTOR, network);
+		PaxosNode node = app.getPaxnode();
+		network.addIdleCheck(node::isIdle);
+		node.run();
+		
+		network.endpoint(0).sendMessage(ACCEPTOR, new Message(MessageType.SNAPSHOT, "4 9 efghi", 7, 0));
+		network.runFor(10);
+		assertNull(app.installed);
+		assertEquals(0, node.getCurrentRound());
+		
+		network.endpoint(0).sendMessage(ACCEPTOR, new Message(MessageType.SNAPSHOT, "0 9 abcd", 7, 0));
+		network.runFor(10);
+		assertEquals("abcdefghi", app.installed);
+		assertEquals(7, node.getCurrentRound());
+	}
+	
+	// the leader snapshots (every 10 rounds in the test build) with rounds in flight, decides
+	// them and goes down. Once restarted from its snapshot and log, and following the node that
+	// took over, it must not hand on a value that was decided before it went down
+	@Test
+	public void restartDoesNotReproposeDecided(){
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		List<PaxosNode> nodes = startCluster(network).stream().map(TestApp::getPaxnode).collect(Collectors.toList());
+		List<String> decided = Collections.synchronizedList(new ArrayList<>());
+		nodes.get(1).addDecisionListener((round, value) -> {
+			if(value.startsWith("v"))
+				decided.add(value);
+		});
+		
+		for(int i=0; i<25; i++)
+			nodes.get(0).propose("v" + i);
+		assertTrue(network.runUntil(() -> decided.size() == 25, 2000));
+		
+		// node 0 is down until it is given a handler again, so node 1 takes over
+		Transport restarted = network.restart(0);
+		nodes.get(1).propose("v25");
+		assertTrue(network.runUntil(() -> decided.contains("v25"), network.now() + 2000));
+		
+		PaxosNode node = new TestApp(0, restarted, PaxosState.filename(0)).getPaxnode();
+		network.addIdleCheck(node::isIdle);
+		node.run();
+		node.propose("v26");
+		assertTrue(network.runUntil(() -> decided.contains("v26"), network.now() + 2000));
+		network.runFor(500);
+		
+		assertEquals("decided twice: " + decided, decided.size(), new HashSet<>(decided).size());
+		assertEquals(27, decided.size());
+		assertEquals(nodes.get(1).getCurrentRound(), node.getCurrentRound());
+		assertEquals("v26", node.getLatestChosenValue());
+	}
+	
+	// the leader is cut off with rounds in flight. The node that takes over adopts whatever a
+	// quorum may have accepted and fills the other open rounds, and once the partition heals
+	// every node has the same log, holding every value
+	@Test
+	public void leaderChangeWithRoundsInFlight(){
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		List<TestApp> apps = startCluster(network);
+		
+		for(int i=0; i<20; i++)
+			apps.get(0).getPaxnode().propose("v" + i);
+		assertTrue(network.runUntil(apps.get(0).getPaxnode()::isLeader, 1000));
+		network.runFor(2);
+		assertTrue(apps.get(0).applied.size() < 20);
+		
+		network.partition(new int[]{0}, new int[]{1, 2});
+		for(int i=0; i<5; i++)
+			apps.get(1).getPaxnode().propose("w" + i);
+		assertTrue(network.runUntil(() -> apps.get(1).applied.contains("w4"), network.now() + 2000));
+		assertTrue(apps.get(1).getPaxnode().isLeader());
+		
+		network.heal();
+		assertTrue(network.runUntil(() -> apps.stream().allMatch(app -> app.applied.containsAll(apps.get(0).applied) && app.applied.size() >= 25), network.now() + 2000));
+		network.runFor(500);
+		
+		List<String> log = new ArrayList<>(apps.get(0).applied);
+		for(int i=0; i<20; i++)
+			assertTrue(log.contains("v" + i));
+		for(int i=0; i<5; i++)
+			assertTrue(log.contains("w" + i));
+		for(TestApp app : apps)
+			assertEquals(log, app.applied);
+	}
+	
+	// a read on a follower that missed the latest writes waits until it has applied them,
+	// and one on the leader is answered at once from its lease
+	@Test
+	public void readsSeeEarlierWrites() throws Exception {
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		List<TestApp> apps = startCluster(network);
+		
+		network.partition(new int[]{0, 1}, new int[]{2});
+		CompletableFuture<Integer> last = null;
+		for(int i=0; i<15; i++)
+			last = apps.get(0).getPaxnode().propose("v" + i);
+		assertTrue(network.runUntil(last::isDone, 1000));
+		
+		CompletableFuture<Integer> onLeader = apps.get(0).getPaxnode().read(apps.get(0).applied::size);
+		network.runFor(1);
+		assertEquals(15, (int)onLeader.get());
+		
+		CompletableFuture<Integer> onFollower = apps.get(2).getPaxnode().read(apps.get(2).applied::size);
+		network.runFor(100);
+		assertFalse(onFollower.isDone());
+		
+		network.heal();
+		assertTrue(network.runUntil(onFollower::isDone, network.now() + 2000));
+		assertEquals(15, (int)onFollower.get());
+	}
+	
+	// a node cut off while the others decide and compact past the rounds it is missing catches
+	// up once the partition heals, from a snapshot and then the rounds after it
+	@Test
+	public void catchUpThroughSnapshot(){
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 1);
+		List<TestApp> apps = startCluster(network);
+		
+		network.partition(new int[]{0, 1}, new int[]{2});
+		for(int i=0; i<35; i++)
+			apps.get(0).getPaxnode().propose("v" + i);
+		assertTrue(network.runUntil(() -> apps.get(1).applied.size() == 35, 2000));
+		assertTrue(apps.get(2).applied.isEmpty());
+		
+		network.heal();
+		assertTrue(network.runUntil(() -> apps.get(2).applied.size() == 35, network.now() + 2000));
+		assertNotNull(apps.get(2).installed);
+		assertEquals(apps.get(0).applied, apps.get(2).applied);
+		assertEquals(apps.get(0).getPaxnode().getCurrentRound(), apps.get(2).getPaxnode().getCurrentRound());
+	}
+	
+	// with a full window of rounds in flight over a network that loses and reorders messages,
+	// rounds are decided out of order and some announcements are lost. Every node still
+	// applies the same values in the same order, without gaps, and none is lost
+	@Test
+	public void pipelinedRoundsOverLossyNetwork(){
+		SimulatedNetwork network = new SimulatedNetwork(nodeList.getPath(), 3);
+		network.setLatency(LatencyModel.uniform(1, 5));
+		network.setDropRate(0.05);
+		network.setReorderRate(0.3);
+		List<TestApp> apps = startCluster(network);
+		
+		for(int i=0; i<40; i++)
+			apps.get(i % 2).getPaxnode().propose("v" + i);
+		assertTrue(network.runUntil(() -> apps.stream().allMatch(app -> app.applied.size() >= 40), 5000));
+		network.runFor(500);
+		
+		List<String> log = new ArrayList<>(apps.get(0).applied);
+		for(int i=0; i<40; i++)
+			assertTrue(log.contains("v" + i));
+		for(TestApp app : apps)
+			assertEquals(log, app.applied);
+	}
+	
+}
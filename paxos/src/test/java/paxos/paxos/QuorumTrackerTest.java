@@ -0,0 +1,115 @@
+package paxos.paxos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class QuorumTrackerTest {
+	
+	private static double[] equalWeights(int n){
+		double[] weights = new double[n];
+		Arrays.fill(weights, 1.0/n);
+		return weights;
+	}
+	
+	@Test
+	public void majorityNeedsMoreThanHalf(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(4), 0.5, 0.5, 8);
+		long w = quorum.weight(0);
+		assertFalse(quorum.isPhase1Quorum(2*w));
+		assertFalse(quorum.isPhase2Quorum(2*w));
+		assertTrue(quorum.isPhase1Quorum(3*w));
+		assertTrue(quorum.isPhase2Quorum(3*w));
+	}
+	
+	// thirds do not add up to exactly WEIGHT_SCALE, the thresholds are taken of whatever they add up to
+	@Test
+	public void thresholdsAreFractionsOfTheTotal(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(3), 0.5, 0.5, 8);
+		assertFalse(quorum.isPhase2Quorum(quorum.weight(0)));
+		assertTrue(quorum.isPhase2Quorum(quorum.weight(0) + quorum.weight(1)));
+		
+		QuorumTracker partial = new QuorumTracker(new double[]{0.3, 0.3}, 0.5, 0.5, 8);
+		assertFalse(partial.isPhase1Quorum(partial.weight(0)));
+		assertTrue(partial.isPhase1Quorum(partial.totalWeight()));
+	}
+	
+	@Test
+	public void flexibleQuorums(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(10), 0.7, 0.3, 8);
+		long w = quorum.weight(0);
+		assertFalse(quorum.isPhase2Quorum(3*w));
+		assertTrue(quorum.isPhase2Quorum(4*w));
+		assertFalse(quorum.isPhase1Quorum(7*w));
+		assertTrue(quorum.isPhase1Quorum(8*w));
+	}
+	
+	@Test
+	public void weightedAcceptors(){
+		QuorumTracker quorum = new QuorumTracker(new double[]{0.6, 0.2, 0.2}, 0.5, 0.5, 8);
+		assertTrue(quorum.isPhase2Quorum(quorum.weight(0)));
+		assertFalse(quorum.isPhase2Quorum(quorum.weight(1) + quorum.weight(2)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void nonIntersectingQuorumsRejected(){
+		new QuorumTracker(equalWeights(3), 0.4, 0.5, 8);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void thresholdOfOneRejected(){
+		new QuorumTracker(equalWeights(3), 1.0, 0.5, 8);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroWeightRejected(){
+		new QuorumTracker(new double[]{0, 0}, 0.5, 0.5, 8);
+	}
+	
+	@Test
+	public void chosenOnceAQuorumAccepts(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(3), 0.5, 0.5, 8);
+		assertNull(quorum.record(0, new Proposal(1, "a", 0)));
+		// a repeated notification does not count twice
+		assertNull(quorum.record(0, new Proposal(1, "a", 0)));
+		assertEquals("a", quorum.record(1, new Proposal(1, "a", 0)));
+		assertEquals(Arrays.asList(0, 1), quorum.holders(0, 1));
+	}
+	
+	// an acceptor's weight moves to the higher numbered proposal it accepts later
+	@Test
+	public void higherNumberReplacesEarlierAccept(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(3), 0.5, 0.5, 8);
+		assertNull(quorum.record(0, new Proposal(1, "a", 0)));
+		assertNull(quorum.record(0, new Proposal(4, "b", 0)));
+		assertNull(quorum.record(1, new Proposal(1, "a", 0)));
+		assertNull(quorum.record(0, new Proposal(1, "a", 0)));
+		assertEquals("b", quorum.record(2, new Proposal(4, "b", 0)));
+	}
+	
+	// rounds a ring size apart share a slot; the later one is tallied on the side until the slot is free
+	@Test
+	public void ringWrapsAround(){
+		QuorumTracker quorum = new QuorumTracker(equalWeights(3), 0.5, 0.5, 4);
+		assertNull(quorum.record(0, new Proposal(1, "a", 0)));
+		assertNull(quorum.record(0, new Proposal(1, "e", 4)));
+		assertNull(quorum.record(1, new Proposal(1, "i", 8)));
+		
+		assertEquals("e", quorum.record(1, new Proposal(1, "e", 4)));
+		quorum.remove(4);
+		assertEquals("a", quorum.record(2, new Proposal(1, "a", 0)));
+		quorum.remove(0);
+		
+		// the freed slot starts from nothing for the next round that maps to it
+		assertNull(quorum.record(0, new Proposal(2, "m", 12)));
+		assertEquals(Arrays.asList(0), quorum.holders(12, 2));
+		assertEquals("i", quorum.record(2, new Proposal(1, "i", 8)));
+		assertEquals(Arrays.asList(1, 2), quorum.holders(8, 1));
+	}
+	
+}
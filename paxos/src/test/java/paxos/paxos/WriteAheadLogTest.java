@@ -0,0 +1,128 @@
+package paxos.paxos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+	
+	private File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("paxos-wal", ".wal");
+	}
+	
+	@After
+	public void tearDown(){
+		file.delete();
+	}
+	
+	private PaxosState recover() throws IOException {
+		PaxosState state = new PaxosState(0);
+		WriteAheadLog.recover(file.getPath(), state);
+		return state;
+	}
+	
+	// a few records for rounds 0 and 1, returning the sequence number of the last
+	private static long logRounds(WriteAheadLog wal){
+		wal.logProposalNumber(3);
+		wal.logPromise(5);
+		wal.logAccept(new Proposal(5, "a", 0));
+		wal.logChosen(0, "a");
+		return wal.logAccept(new Proposal(5, "b", 1));
+	}
+	
+	@Test
+	public void replayRestoresEveryRecord() throws IOException {
+		WriteAheadLog wal = WriteAheadLog.create(file.getPath());
+		wal.sync(logRounds(wal));
+		
+		PaxosState state = recover();
+		assertEquals(3, state.lastProposalNumber);
+		assertEquals(5, state.promiseNumber);
+		assertEquals("a", state.chosenValues.get(0));
+		assertEquals(1, state.currentRound);
+		assertEquals("b", state.acceptedProposals.get(1).value);
+		// accepted proposals outlive the decision, Phase 1 replies still report them
+		assertEquals("a", state.acceptedProposals.get(0).value);
+	}
+	
+	@Test
+	public void unsyncedRecordsAreNotReplayed() throws IOException {
+		WriteAheadLog wal = WriteAheadLog.create(file.getPath());
+		wal.sync(wal.logPromise(5));
+		wal.logPromise(9);
+		
+		assertEquals(5, recover().promiseNumber);
+	}
+	
+	@Test
+	public void tornTailIsTruncated() throws IOException {
+		WriteAheadLog wal = WriteAheadLog.create(file.getPath());
+		logRounds(wal);
+		wal.sync(wal.logChosen(1, "b"));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			raf.setLength(raf.length()-3);
+		}
+		
+		PaxosState state = recover();
+		assertEquals("a", state.chosenValues.get(0));
+		assertFalse(state.chosenValues.containsKey(1));
+		
+		// appending after recovery starts where the intact records end
+		wal = WriteAheadLog.recover(file.getPath(), new PaxosState(0));
+		wal.sync(wal.logChosen(2, "c"));
+		state = recover();
+		assertEquals("a", state.chosenValues.get(0));
+		assertEquals("c", state.chosenValues.get(2));
+	}
+	
+	@Test
+	public void corruptRecordStopsReplay() throws IOException {
+		WriteAheadLog wal = WriteAheadLog.create(file.getPath());
+		wal.sync(wal.logPromise(5));
+		long length = file.length();
+		wal.logPromise(7);
+		wal.sync(wal.logPromise(9));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			raf.seek(length + 8 + 2);
+			raf.write(0x55);
+		}
+		
+		PaxosState state = recover();
+		assertEquals(5, state.promiseNumber);
+		assertEquals(length, file.length());
+	}
+	
+	@Test
+	public void resetAfterSnapshot() throws IOException {
+		WriteAheadLog wal = WriteAheadLog.create(file.getPath());
+		wal.sync(logRounds(wal));
+		wal.reset();
+		assertEquals(0, file.length());
+		assertTrue(wal.isSynced(wal.lastSequence()));
+		
+		wal.logChosen(1, "b");
+		wal.sync(wal.logChosen(2, "c"));
+		
+		// the snapshot covers round 1, only round 2 is replayed on top of it
+		PaxosState state = new PaxosState(0);
+		state.snapshotRound = 2;
+		state.currentRound = 2;
+		WriteAheadLog.recover(file.getPath(), state);
+		assertEquals(-1, state.promiseNumber);
+		assertFalse(state.chosenValues.containsKey(1));
+		assertEquals("c", state.chosenValues.get(2));
+		assertEquals(3, state.currentRound);
+	}
+	
+}